@@ -0,0 +1,124 @@
+package bittorrent;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size bitfield that many threads can update without a lock. Bits are set and cleared with
+ * CAS on 64-bit words, the number of set bits is kept up to date on every change, and the words
+ * can be read one at a time, so that bitfields are compared without copying either one.
+ */
+public class AtomicBitfield {
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality = new AtomicInteger();
+
+    public AtomicBitfield(int size) {
+        this.size = size;
+        words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    /** Copies the bits of {@code bits} below {@code size}. */
+    public static AtomicBitfield valueOf(BitSet bits, int size) {
+        AtomicBitfield bitfield = new AtomicBitfield(size);
+        bitfield.or(bits);
+        return bitfield;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int wordCount() {
+        return words.length();
+    }
+
+    public long word(int i) {
+        return words.get(i);
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /** Sets a bit and returns true if this call changed it. */
+    public boolean set(int index) {
+        int i = index >>> 6;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = words.get(i);
+            if ((word & mask) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(i, word, word | mask));
+        cardinality.incrementAndGet();
+        return true;
+    }
+
+    /** Clears a bit and returns true if this call changed it. */
+    public boolean clear(int index) {
+        int i = index >>> 6;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = words.get(i);
+            if ((word & mask) == 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(i, word, word & ~mask));
+        cardinality.decrementAndGet();
+        return true;
+    }
+
+    public void setAll() {
+        for (int i = 0; i < size; i++) {
+            set(i);
+        }
+    }
+
+    public void or(BitSet bits) {
+        for (int i = bits.nextSetBit(0); i >= 0 && i < size; i = bits.nextSetBit(i + 1)) {
+            set(i);
+        }
+    }
+
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    public boolean isEmpty() {
+        return cardinality.get() == 0;
+    }
+
+    public boolean isComplete() {
+        return cardinality.get() == size;
+    }
+
+    public int nextSetBit(int from) {
+        if (from >= size) {
+            return -1;
+        }
+        int i = from >>> 6;
+        long word = words.get(i) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int index = (i << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++i == words.length()) {
+                return -1;
+            }
+            word = words.get(i);
+        }
+    }
+
+    public BitSet toBitSet() {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return BitSet.valueOf(copy);
+    }
+}
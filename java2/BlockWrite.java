@@ -0,0 +1,26 @@
+package bittorrent;
+
+import java.nio.ByteBuffer;
+
+/** A received block waiting in the {@link DiskWriter} queue. */
+public class BlockWrite {
+    public final Connection source;
+    public final int index;
+    public final int begin;
+    public final long position;
+    public final int length;
+    public final ByteBuffer data;
+
+    public BlockWrite(Connection source, int index, int begin, long position, ByteBuffer data) {
+        this.source = source;
+        this.index = index;
+        this.begin = begin;
+        this.position = position;
+        this.length = data.remaining();
+        this.data = data;
+    }
+
+    public long block(int blockSize) {
+        return PieceAssembler.block(index, begin / blockSize);
+    }
+}
@@ -0,0 +1,52 @@
+package bittorrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time one side of a connection has spent choked and unchoked. Finished choked periods are also
+ * recorded in a histogram shared by the peer's connections.
+ */
+public class ChokeTimer {
+    private final AtomicLong since = new AtomicLong(System.nanoTime());
+    private final LongAdder chokedNanos = new LongAdder();
+    private final LongAdder unchokedNanos = new LongAdder();
+    private final Histogram chokedPeriods;
+    private volatile boolean choked = true;
+
+    public ChokeTimer(Histogram chokedPeriods) {
+        this.chokedPeriods = chokedPeriods;
+    }
+
+    public void set(boolean choked) {
+        long now = System.nanoTime();
+        long elapsed = now - since.getAndSet(now);
+        boolean was = this.choked;
+        this.choked = choked;
+        if (was) {
+            chokedNanos.add(elapsed);
+            if (!choked) {
+                chokedPeriods.record(elapsed);
+            }
+        } else {
+            unchokedNanos.add(elapsed);
+        }
+    }
+
+    /** Lengths of the finished choked periods. */
+    public Histogram periods() {
+        return chokedPeriods;
+    }
+
+    public long chokedNanos() {
+        return chokedNanos.sum() + (choked ? current() : 0);
+    }
+
+    public long unchokedNanos() {
+        return unchokedNanos.sum() + (choked ? 0 : current());
+    }
+
+    private long current() {
+        return System.nanoTime() - since.get();
+    }
+}
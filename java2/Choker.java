@@ -0,0 +1,41 @@
+package bittorrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tit-for-tat choking. Each round updates every connection's moving-average transfer rates and
+ * picks the interested neighbors to unchoke: while downloading, the ones sending to us fastest;
+ * while seeding, the ones we upload to fastest. Slots no reciprocating neighbor can fill go to
+ * other interested neighbors at random. Rounds work on a snapshot of the connection list.
+ */
+public class Choker {
+    // Weight of the latest round in the moving averages.
+    private static final double ALPHA = 0.5;
+
+    private final int slots;
+
+    public Choker(int slots) {
+        this.slots = slots;
+    }
+
+    public List<Connection> select(List<Connection> snapshot, double seconds, boolean seeding) {
+        List<Connection> interested = new ArrayList<>();
+        for (Connection conn : snapshot) {
+            conn.downloadRate.update(seconds, ALPHA);
+            conn.uploadRate.update(seconds, ALPHA);
+            if (conn.interested) {
+                interested.add(conn);
+            }
+        }
+        Collections.shuffle(interested);
+        Comparator<Connection> byRate = seeding
+                ? Comparator.comparingDouble(conn -> conn.uploadRate.rate())
+                : Comparator.comparingDouble(conn -> conn.downloadRate.rate());
+        // The sort is stable, so neighbors with equal rates stay in shuffled order.
+        interested.sort(byRate.reversed());
+        return interested.subList(0, Math.min(slots, interested.size()));
+    }
+}
@@ -1,3 +1,5 @@
+package bittorrent;
+
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Properties;
@@ -18,7 +20,25 @@ public class Config {
         return properties.getProperty(key);
     }
 
+    public String getString(String key, String defaultValue) {
+        return properties.getProperty(key, defaultValue);
+    }
+
     public int getInt(String key) {
         return Integer.parseInt(properties.getProperty(key));
     }
+
+    public long getLong(String key) {
+        return Long.parseLong(properties.getProperty(key));
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.strip());
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.strip());
+    }
 }
@@ -1,168 +1,538 @@
+package bittorrent;
+
 import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
-import java.net.Socket;
+import java.net.ProtocolException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.BitSet;
-import java.util.concurrent.ThreadLocalRandom;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Connection implements Runnable {
-    public BitSet otherBitarray;
+    public volatile AtomicBitfield otherBitarray;
+    public volatile AtomicBitfield sharedBitarray;
     public int otherPeerId = -1;
-    public boolean interested = false;
-    public boolean choked = true;
-    public int piecesReceived = 0;
+    public volatile boolean interested = false;
+    public volatile boolean choked = true;
+    public final TransferRate downloadRate = new TransferRate();
+    public final TransferRate uploadRate = new TransferRate();
+    public boolean chokedByOther = true;
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final Histogram requestLatency = new Histogram();
+    public final ChokeTimer chokedByOtherTime;
+    public final ChokeTimer chokingTime;
 
-    private final boolean initiateHandshake;
-    private final Socket socket;
+    private final Link link;
     private final Peer peer;
+    private final int traceId;
+    private final FrameDecoder decoder;
+    private final Message message = new Message();
+    // Blocks requested from the neighbor, mapped to when the REQUEST was queued.
+    private final RequestTable outstanding;
+    private final AtomicBoolean neighborComplete = new AtomicBoolean();
+    private final AtomicBoolean cleanedUp = new AtomicBoolean();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean interestedInOther = false;
+    private boolean handshakeReceived = false;
+
+    private final RateLimiter downloadLimiter;
+    private final AtomicBoolean requestsScheduled = new AtomicBoolean();
+    private volatile long requestsResumeAt = System.nanoTime();
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
-    private RandomAccessFile raf;
+    private final OutboundQueue outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean throttledFlushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::flush;
+    private volatile EventLoop eventLoop;
+    private volatile Thread writer;
+    private SelectionKey key;
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
 
-    public Connection(boolean initiateHandshake, Socket socket, Peer peer) {
-        this.initiateHandshake = initiateHandshake;
-        this.socket = socket;
+    public Connection(Link link, Peer peer) {
+        this.link = link;
         this.peer = peer;
-        otherBitarray = new BitSet(peer.numPieces);
-        otherBitarray.clear();
+        decoder = new FrameDecoder(peer.maxMessageLength);
+        outstanding = new RequestTable(peer.maxOutstandingRequests);
+        otherBitarray = new AtomicBitfield(peer.numPieces);
+        sharedBitarray = new AtomicBitfield(peer.numPieces);
+        downloadLimiter = new RateLimiter(peer.connectionDownloadRate);
+        chokedByOtherTime = new ChokeTimer(peer.metrics.chokedPeriods);
+        chokingTime = new ChokeTimer(new Histogram());
+        outbound = new OutboundQueue(
+                peer.uploadLimiter, new RateLimiter(peer.connectionUploadRate), peer.uploadSlots);
+        peer.incompleteNeighbors.incrementAndGet();
+        traceId = peer.trace.opened();
+        // Both sides send their handshake right away. Queuing it before the connection is visible
+        // to other threads guarantees that no HAVE or CHOKE broadcast can go out ahead of it.
+        byte[] handshake = Message.handshake(peer.peerId);
+        write(new Outbound(ByteBuffer.wrap(handshake)));
+        peer.log.sent(otherPeerId, handshake);
+        peer.trace.sent(traceId, handshake);
+    }
 
-        if (peer.hasFile == 0) {
-            try {
-                String path = String.format("./peer_%s/%s", peer.peerId, peer.filename);
-                File file = new File(path);
-                file.getParentFile().mkdirs();
-                file.createNewFile();
-                raf = new RandomAccessFile(path, "rw");
-            } catch (IOException e) {
-                System.err.println(e.getMessage());
+    public void run() {
+        try {
+            while (peer.missingPieces() || peer.neighborsMissingPieces()) {
+                respond(rcv());
             }
+
+            // The writer closes the channel once everything queued has gone out.
+            closing = true;
+            LockSupport.unpark(writer);
+            peer.log.closed(otherPeerId);
+        } catch (SocketException | EOFException | ClosedChannelException e) {
+            peer.log.disconnected(otherPeerId);
+            close();
+        } catch (IOException | RuntimeException e) {
+            System.err.println(e.toString());
+            close();
         }
+        cleanUp();
     }
 
-    public void run() {
+    /** Drains the outbound queue of a blocking connection; runs on its own thread. */
+    public void writeLoop() {
+        writer = Thread.currentThread();
         try {
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
-            if (initiateHandshake) {
-                send(Message.handshake(peer.peerId));
+            while (!closed) {
+                boolean drained = outbound.writeTo(link);
+                countBytesOut();
+                if (drained) {
+                    if (closing) {
+                        link.close();
+                        closed = true;
+                    } else {
+                        LockSupport.park(this);
+                    }
+                } else if (outbound.delay() > 0) {
+                    LockSupport.parkNanos(this, outbound.delay());
+                }
             }
+        } catch (IOException e) {
+            close();
+        } catch (RuntimeException e) {
+            System.err.println(e.toString());
+            close();
+        }
+        outbound.discard();
+    }
 
-            while (peer.missingPieces() || peer.neighborsMissingPieces()) {
-                respond(rcv());
+    public void attach(EventLoop eventLoop, SelectionKey key) {
+        this.key = key;
+        this.eventLoop = eventLoop;
+        flush();
+    }
+
+    public void onReadable() {
+        try {
+            if (readFrom() < 0) {
+                peer.log.disconnected(otherPeerId);
+                close();
+                return;
+            }
+            while (!closing && decoder.next(message)) {
+                respond(received(message));
+                closing = !(peer.missingPieces() || peer.neighborsMissingPieces());
             }
+            if (closing) {
+                flush();
+            }
+        } catch (ProtocolException e) {
+            System.err.println(e.toString());
+            close();
+        } catch (IOException e) {
+            peer.log.disconnected(otherPeerId);
+            close();
+        }
+    }
+
+    public void onWritable() {
+        flush();
+    }
 
-            in.close();
-            out.close();
-            socket.close();
-            System.out.printf("Peer %s closed connection with Peer %s%n", peer.peerId, otherPeerId);
-        } catch (SocketException | EOFException e) {
-            System.out.printf("Peer %s-%s connection was closed%n", peer.peerId, otherPeerId);
-        } catch (IOException | ClassNotFoundException e) {
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            boolean drained = outbound.writeTo(link);
+            countBytesOut();
+            if (!drained) {
+                if (outbound.delay() == 0) {
+                    interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } else {
+                    interestOps(SelectionKey.OP_READ);
+                    if (throttledFlushScheduled.compareAndSet(false, true)) {
+                        peer.schedule(this::throttledFlush, outbound.delay());
+                    }
+                }
+                return;
+            }
+            interestOps(SelectionKey.OP_READ);
+            if (closing) {
+                close();
+                peer.log.closed(otherPeerId);
+            }
+        } catch (IOException e) {
+            peer.log.disconnected(otherPeerId);
+            close();
+        }
+    }
+
+    // A connection that is driven directly, as by TraceReplay, has no selection key.
+    private void interestOps(int ops) {
+        if (key != null) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void throttledFlush() {
+        throttledFlushScheduled.set(false);
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(flushTask);
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            link.close();
+        } catch (IOException e) {
             System.err.println(e.toString());
         }
+        if (link.isBlocking()) {
+            LockSupport.unpark(writer);
+            return;
+        }
+        outbound.discard();
+        cleanUp();
+    }
+
+    // Both close() and the end of run() get here, so only the first call gives anything back.
+    private void cleanUp() {
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
+        releaseRequests();
+        peer.picker.removeBitfield(otherBitarray);
+        if (neighborComplete.compareAndSet(false, true)) {
+            peer.incompleteNeighbors.decrementAndGet();
+        }
         peer.connections.remove(this);
     }
 
-    private Message rcv() throws IOException, ClassNotFoundException {
-        byte[] msg = (byte[]) in.readObject();
-        System.out.printf("Peer %s received %s from Peer %s%n", peer.peerId, getType(msg), otherPeerId);
-        return Message.parse(msg);
+    private Message rcv() throws IOException {
+        while (!decoder.next(message)) {
+            if (readFrom() < 0) {
+                throw new EOFException();
+            }
+        }
+        return received(message);
+    }
+
+    private int readFrom() throws IOException {
+        int n = decoder.readFrom(link);
+        if (n > 0) {
+            bytesIn.add(n);
+            peer.metrics.bytesIn.add(n);
+        }
+        return n;
+    }
+
+    private void countBytesOut() {
+        long n = outbound.takeBytesWritten();
+        if (n > 0) {
+            bytesOut.add(n);
+            peer.metrics.bytesOut.add(n);
+        }
+    }
+
+    public int outstandingRequests() {
+        return outstanding.size();
+    }
+
+    private Message received(Message msg) {
+        peer.log.received(otherPeerId, msg);
+        peer.trace.received(traceId, msg);
+        return msg;
     }
 
     public void send(byte[] msg) throws IOException {
-        out.writeObject(msg);
-        System.out.printf("Peer %s sent %s to Peer %s%n", peer.peerId, getType(msg), otherPeerId);
+        write(new Outbound(ByteBuffer.wrap(msg)));
+        peer.log.sent(otherPeerId, msg);
+        peer.trace.sent(traceId, msg);
     }
 
-    private String getType(byte[] msg) {
-        return Message.parse(msg).type.toString().toLowerCase();
+    private void sendBlock(int index, int begin, int length) throws IOException {
+        if (!peer.bitarray.get(index)) {
+            return;
+        }
+        byte[] headerBytes = Message.pieceHeader(index, begin, length);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        uploadRate.add(length);
+        FileChannel file = peer.pieces.fileChannel();
+        if (file != null) {
+            write(new Outbound(file, (long) index * peer.pieceSize + begin, length, header)
+                    .forBlock(PieceAssembler.block(index, begin / peer.blockSize), length));
+        } else {
+            write(new Outbound(header, peer.pieces.read(index, begin, length))
+                    .forBlock(PieceAssembler.block(index, begin / peer.blockSize), length));
+        }
+        peer.log.sentBlock(otherPeerId, index, begin, length);
+        peer.trace.sent(traceId, headerBytes);
+    }
+
+    // Only queues the frame; the event loop or the writer thread puts it on the wire, so senders
+    // never wait on a slow neighbor.
+    private void write(Outbound frame) {
+        if (closed) {
+            return;
+        }
+        outbound.add(frame);
+        if (!link.isBlocking()) {
+            EventLoop loop = eventLoop;
+            if (loop != null && flushScheduled.compareAndSet(false, true)) {
+                loop.execute(flushTask);
+            }
+        } else {
+            LockSupport.unpark(writer);
+        }
     }
 
     private void respond(Message msg) throws IOException {
+        validate(msg);
         switch (msg.type) {
             case HANDSHAKE -> {
-                otherPeerId = byteArrayToInt(msg.payload);
-                if (!initiateHandshake) {
-                    send(Message.handshake(peer.peerId));
-                }
-                synchronized (peer.bitarray) {
-                    if (!peer.bitarray.isEmpty()) {
-                        send(Message.bitfield(peer.bitarray));
-                    }
+                handshakeReceived = true;
+                otherPeerId = msg.peerId();
+                if (!peer.bitarray.isEmpty()) {
+                    send(Message.bitfield(peer.bitarray.toBitSet()));
                 }
             }
-            case CHOKE -> {}
-            case UNCHOKE -> requestPiece();
+            case CHOKE -> {
+                chokedByOther = true;
+                chokedByOtherTime.set(true);
+                releaseRequests();
+            }
+            case UNCHOKE -> {
+                chokedByOther = false;
+                chokedByOtherTime.set(false);
+                requestPieces();
+            }
             case INTERESTED -> interested = true;
             case NOT_INTERESTED -> interested = false;
             case HAVE -> {
-                int index = byteArrayToInt(msg.payload);
-                otherBitarray.set(index, true);
-                notifyInterest();
+                int index = msg.index();
+                if (otherBitarray.set(index)) {
+                    peer.picker.have(index);
+                    if (peer.bitarray.get(index)) {
+                        sharedBitarray.set(index);
+                    }
+                    neighborUpdated();
+                }
+                requestPieces();
             }
             case BITFIELD -> {
-                otherBitarray = BitSet.valueOf(msg.payload);
-                notifyInterest();
+                peer.picker.removeBitfield(otherBitarray);
+                sharedBitarray = new AtomicBitfield(peer.numPieces);
+                otherBitarray = AtomicBitfield.valueOf(msg.toBitSet(), peer.numPieces);
+                peer.picker.addBitfield(otherBitarray);
+                for (int i = otherBitarray.nextSetBit(0); i >= 0; i = otherBitarray.nextSetBit(i + 1)) {
+                    if (peer.bitarray.get(i)) {
+                        sharedBitarray.set(i);
+                    }
+                }
+                neighborUpdated();
+                requestPieces();
             }
-            case REQUEST -> {
-                int index = byteArrayToInt(msg.payload);
-                send(Message.piece(index, peer.pieces.get(index)));
+            case REQUEST -> sendBlock(msg.index(), msg.begin(), msg.blockLength());
+            case CANCEL -> {
+                outbound.cancel(PieceAssembler.block(msg.index(), msg.begin() / peer.blockSize));
             }
             case PIECE -> {
-                int index = byteArrayToInt(Arrays.copyOfRange(msg.payload, 0, 4));
-                byte[] piece = Arrays.copyOfRange(msg.payload, 4, msg.payload.length);
-                peer.pieces.put(index, piece);
-                raf.seek(index * peer.pieceSize);
-                raf.write(piece);
-                synchronized (peer.bitarray) {
-                    peer.bitarray.set(index);
+                int index = msg.index();
+                long block = PieceAssembler.block(index, msg.begin() / peer.blockSize);
+                long requestedAt = outstanding.remove(block);
+                if (requestedAt != RequestTable.NOT_REQUESTED) {
+                    long latency = System.nanoTime() - requestedAt;
+                    requestLatency.record(latency);
+                    peer.metrics.requestLatency.record(latency);
+                }
+                downloadRate.add(msg.blockLength());
+                throttleDownload(msg.blockLength());
+                if (peer.assembler.isReceived(block)) {
+                    requestPieces();
+                    return;
                 }
-                piecesReceived++;
+                ByteBuffer data = ByteBuffer.allocate(msg.blockLength());
+                data.put(0, msg.buffer(), msg.blockOffset(), msg.blockLength());
+                peer.diskWriter.submit(new BlockWrite(
+                        this, index, msg.begin(), (long) index * peer.pieceSize + msg.begin(), data));
                 for (Connection conn : peer.connections) {
-                    conn.send(Message.have(index));
+                    if (conn != this) {
+                        conn.cancelRequest(block);
+                    }
                 }
-                requestPiece();
+                requestPieces();
             }
         }
     }
 
-    private int byteArrayToInt(byte[] bytes) {
-        return ByteBuffer.wrap(bytes).getInt();
+    // A neighbor that names a piece or block that cannot exist is dropped before anything is
+    // indexed by it. Blocks must start on a block boundary and have the length we would request.
+    private void validate(Message msg) throws ProtocolException {
+        boolean valid = switch (msg.type) {
+            case HAVE -> msg.payloadLength() == 4 && isPiece(msg.index());
+            case REQUEST, CANCEL -> msg.payloadLength() == 12 && isBlock(msg);
+            case PIECE -> msg.payloadLength() > 8 && isBlock(msg);
+            case HANDSHAKE -> !handshakeReceived;
+            case CHOKE, UNCHOKE, INTERESTED, NOT_INTERESTED, BITFIELD -> true;
+        };
+        if (!valid) {
+            throw new ProtocolException("Invalid " + msg.type + " from peer " + otherPeerId);
+        }
     }
 
-    private void requestPiece() throws IOException {
-        BitSet diff = missingBitarray();
-        int index = -1;
-        if (!diff.isEmpty()) {
-            while (index < 0 || index > peer.numPieces - 1) {
-                index = ThreadLocalRandom.current().nextInt(0, peer.numPieces - 1);
-                index = diff.nextSetBit(index);
+    private boolean isPiece(int index) {
+        return index >= 0 && index < peer.numPieces;
+    }
+
+    private boolean isBlock(Message msg) {
+        int index = msg.index();
+        int begin = msg.begin();
+        return isPiece(index) && begin >= 0 && begin % peer.blockSize == 0 && begin < peer.pieceLength(index)
+                && msg.blockLength() == peer.assembler.blockLength(index, begin / peer.blockSize);
+    }
+
+    // Received bytes cannot be refused, so the download limits are enforced by holding back the
+    // next requests until the tokens for this block have been earned.
+    private void throttleDownload(int length) {
+        long wait = RateLimiter.reserve(peer.downloadLimiter, downloadLimiter, length);
+        if (wait > 0) {
+            long resumeAt = System.nanoTime() + wait;
+            if (resumeAt - requestsResumeAt > 0) {
+                requestsResumeAt = resumeAt;
             }
-            send(Message.request(index));
         }
     }
 
-    private void notifyInterest() throws IOException {
-        BitSet diff = missingBitarray();
-        if (diff.isEmpty()) {
-            send(Message.notinterested());
-        } else {
-            send(Message.interested());
+    private void resumeRequests() {
+        requestsScheduled.set(false);
+        if (closing || closed) {
+            return;
+        }
+        try {
+            requestPieces();
+        } catch (IOException e) {
+            System.err.println(e.toString());
         }
     }
 
-    private BitSet missingBitarray() {
-        synchronized (peer.bitarray) {
-            BitSet diff = (BitSet) otherBitarray.clone();
-            diff.andNot(peer.bitarray);
-            return diff;
+    // Keeps up to MaxOutstandingRequests block requests in flight, never asking for a block that is
+    // already requested on another connection. Stops while the disk writer is backed up or the
+    // download limits are exceeded.
+    public void requestPieces() throws IOException {
+        long wait = requestsResumeAt - System.nanoTime();
+        if (wait > 0) {
+            if (requestsScheduled.compareAndSet(false, true)) {
+                peer.schedule(this::resumeRequests, wait);
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            while (!chokedByOther && outstanding.size() < peer.maxOutstandingRequests
+                    && !peer.diskWriter.isBackedUp()) {
+                long block = peer.assembler.claimBlock(otherBitarray);
+                if (block < 0) {
+                    block = peer.assembler.claimDuplicate(otherBitarray, outstanding);
+                }
+                if (block < 0) {
+                    break;
+                }
+                outstanding.add(block, System.nanoTime());
+                int index = PieceAssembler.indexOf(block);
+                int begin = PieceAssembler.blockOf(block) * peer.blockSize;
+                send(Message.request(index, begin, peer.assembler.blockLength(index, PieceAssembler.blockOf(block))));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Scheduled rather than called here, so that no thread holds two connections' locks.
+        if (peer.assembler.startEndgame()) {
+            peer.schedule(peer::requestPieces, 0);
+        }
+    }
+
+    /** Takes over a request sent before, as when replaying a trace, without sending it again. */
+    public void requested(long block) {
+        peer.assembler.claim(block);
+        outstanding.add(block, System.nanoTime());
+    }
+
+    // Called from the connection that received the block first, so that the duplicate endgame
+    // request sent on this connection is withdrawn.
+    private void cancelRequest(long block) throws IOException {
+        if (outstanding.remove(block) != RequestTable.NOT_REQUESTED) {
+            peer.assembler.release(block);
+            int index = PieceAssembler.indexOf(block);
+            int b = PieceAssembler.blockOf(block);
+            send(Message.cancel(index, b * peer.blockSize, peer.assembler.blockLength(index, b)));
+        }
+    }
+
+    private void releaseRequests() {
+        long block;
+        while ((block = outstanding.removeAny()) >= 0) {
+            peer.assembler.release(block);
+        }
+    }
+
+    // A piece counts as shared once both sides have it. Whichever side's update lands second marks
+    // it, and the CAS in AtomicBitfield makes sure it is only counted once.
+    public int wantedPieces() {
+        return otherBitarray.cardinality() - sharedBitarray.cardinality();
+    }
+
+    /** Called after we complete a piece, which the neighbor may have been the only one to offer. */
+    public void pieceCompleted(int index) throws IOException {
+        if (otherBitarray.get(index) && sharedBitarray.set(index)) {
+            updateInterest();
+        }
+    }
+
+    private void neighborUpdated() throws IOException {
+        if (otherBitarray.isComplete() && neighborComplete.compareAndSet(false, true)) {
+            peer.incompleteNeighbors.decrementAndGet();
+        }
+        updateInterest();
+    }
+
+    // Sends INTERESTED or NOT_INTERESTED only when the answer changes.
+    private void updateInterest() throws IOException {
+        lock.lock();
+        try {
+            boolean wanted = wantedPieces() > 0;
+            if (wanted != interestedInOther) {
+                interestedInOther = wanted;
+                send(wanted ? Message.interested() : Message.notinterested());
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,115 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes received blocks to the piece store on its own thread so that connections never wait on the
+ * disk. Each pass drains whatever is queued, sorts it by file position and hands runs of adjacent
+ * blocks to the store as one sequential write. The queue itself never blocks a connection; once it
+ * holds DiskQueueSize blocks, connections stop sending new requests until it drains.
+ */
+public class DiskWriter implements Runnable {
+    private static final int MAX_BATCH = 256;
+
+    private final Peer peer;
+    private final BlockingQueue<BlockWrite> queue = new LinkedBlockingQueue<>();
+    private final List<BlockWrite> batch = new ArrayList<>();
+    private final List<BlockWrite> written = new ArrayList<>();
+    private final int capacity;
+    private final boolean fsync;
+
+    public DiskWriter(Peer peer, int capacity, boolean fsync) {
+        this.peer = peer;
+        this.capacity = capacity;
+        this.fsync = fsync;
+    }
+
+    public void submit(BlockWrite write) {
+        queue.add(write);
+    }
+
+    public boolean isBackedUp() {
+        return queue.size() >= capacity;
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                writeBatch();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Writes everything queued on the calling thread, for a peer that runs no disk writer thread. */
+    public void writeQueued() {
+        while (queue.drainTo(batch, 1) > 0) {
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() {
+        queue.drainTo(batch, MAX_BATCH - batch.size());
+        // Connections stopped requesting if the queue was full before this batch left it.
+        boolean wasBackedUp = batch.size() + queue.size() >= capacity;
+        boolean failed = !write(batch);
+        for (BlockWrite write : written) {
+            peer.blockWritten(write);
+        }
+        written.clear();
+        batch.clear();
+        if (failed || wasBackedUp && !isBackedUp()) {
+            peer.requestPieces();
+        }
+    }
+
+    // Collects the blocks that reached the store in written. Blocks that failed to are released so
+    // that they are requested again; returns false if there were any.
+    private boolean write(List<BlockWrite> batch) {
+        batch.sort(Comparator.comparingLong(write -> write.position));
+        boolean ok = true;
+        int start = 0;
+        for (int i = 1; i <= batch.size(); i++) {
+            if (i == batch.size() || batch.get(i).position != batch.get(i - 1).position + batch.get(i - 1).length) {
+                List<BlockWrite> run = batch.subList(start, i);
+                try {
+                    peer.pieces.write(run);
+                    written.addAll(run);
+                } catch (IOException e) {
+                    System.err.println(e.toString());
+                    release(run);
+                    ok = false;
+                }
+                start = i;
+            }
+        }
+        if (fsync && !written.isEmpty()) {
+            try {
+                peer.pieces.sync();
+            } catch (IOException e) {
+                System.err.println(e.toString());
+                release(written);
+                written.clear();
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private void release(List<BlockWrite> writes) {
+        for (BlockWrite write : writes) {
+            peer.assembler.release(write.block(peer.blockSize));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package bittorrent;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Per-peer event log. Connection threads record fixed-size binary events into a ring buffer, at the
+ * cost of a CAS and a few array stores, and a background thread formats them into
+ * {@code log_peer_<id>.log}. Producers never block: when the ring is full the event is dropped and
+ * counted, and the writer reports the loss. At the {@code debug} level every message is logged
+ * with its index, offset and length, numbered in the order it was recorded, so the message stream
+ * of each connection can be reconstructed from the file.
+ */
+public class EventLog implements Runnable {
+    public enum Level { OFF, INFO, DEBUG }
+
+    private static final int SENT = 0;
+    private static final int RECEIVED = 1;
+    private static final int CONNECTED = 2;
+    private static final int CLOSED = 3;
+    private static final int DISCONNECTED = 4;
+    private static final int PIECE_COMPLETED = 5;
+    private static final int PIECE_DISCARDED = 6;
+    private static final int RESUMED = 7;
+
+    // Each event is four longs: time, kind | type | neighbor, index | begin, length.
+    private static final int STRIDE = 4;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final int peerId;
+    private final String path;
+    private final Level level;
+    private final int capacity;
+    private final long[] events;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final long epochNanos = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+    public EventLog(int peerId, String path, Level level, int capacity) {
+        this.peerId = peerId;
+        this.path = path;
+        this.level = level;
+        // Nothing is recorded when logging is off, so don't hold a ring per peer in large swarms.
+        this.capacity = level == Level.OFF ? 2 : Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        events = new long[this.capacity * STRIDE];
+        published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    public static Level level(Config config) {
+        return Level.valueOf(config.getString("LogLevel", "info").strip().toUpperCase());
+    }
+
+    public boolean enabled(Level level) {
+        return level.compareTo(this.level) <= 0;
+    }
+
+    /** Records a message as sent; REQUEST, PIECE and CANCEL only at the debug level. */
+    public void sent(int neighbor, byte[] msg) {
+        MessageType type = Message.typeOf(msg);
+        if (!enabled(levelOf(type))) {
+            return;
+        }
+        int index = -1;
+        int begin = 0;
+        int length = msg.length - 5;
+        switch (type) {
+            case HANDSHAKE -> {
+                index = intAt(msg, 28);
+                length = 0;
+            }
+            case HAVE -> index = intAt(msg, 5);
+            case REQUEST, CANCEL -> {
+                index = intAt(msg, 5);
+                begin = intAt(msg, 9);
+                length = intAt(msg, 13);
+            }
+            default -> { }
+        }
+        record(SENT, type, neighbor, index, begin, length);
+    }
+
+    public void sentBlock(int neighbor, int index, int begin, int length) {
+        if (enabled(Level.DEBUG)) {
+            record(SENT, MessageType.PIECE, neighbor, index, begin, length);
+        }
+    }
+
+    /** Records a received message; the view is only read here, never kept. */
+    public void received(int neighbor, Message msg) {
+        if (msg.type == null || !enabled(levelOf(msg.type))) {
+            return;
+        }
+        switch (msg.type) {
+            case HANDSHAKE -> record(RECEIVED, msg.type, msg.peerId(), msg.peerId(), 0, 0);
+            case HAVE -> record(RECEIVED, msg.type, neighbor, msg.index(), 0, msg.payloadLength());
+            case REQUEST, CANCEL, PIECE ->
+                    record(RECEIVED, msg.type, neighbor, msg.index(), msg.begin(), msg.blockLength());
+            default -> record(RECEIVED, msg.type, neighbor, -1, 0, msg.payloadLength());
+        }
+    }
+
+    public void connected(int neighbor) {
+        event(CONNECTED, neighbor, -1);
+    }
+
+    /** The connection ended after both sides had every piece. */
+    public void closed(int neighbor) {
+        event(CLOSED, neighbor, -1);
+    }
+
+    /** The neighbor hung up or the connection failed. */
+    public void disconnected(int neighbor) {
+        event(DISCONNECTED, neighbor, -1);
+    }
+
+    public void pieceCompleted(int index, int count) {
+        if (enabled(Level.INFO)) {
+            record(PIECE_COMPLETED, null, -1, index, 0, count);
+        }
+    }
+
+    public void pieceDiscarded(int index) {
+        event(PIECE_DISCARDED, -1, index);
+    }
+
+    public void resumed(int count) {
+        event(RESUMED, -1, count);
+    }
+
+    private void event(int kind, int neighbor, int index) {
+        if (enabled(Level.INFO)) {
+            record(kind, null, neighbor, index, 0, 0);
+        }
+    }
+
+    private static Level levelOf(MessageType type) {
+        return switch (type) {
+            case REQUEST, PIECE, CANCEL -> Level.DEBUG;
+            default -> Level.INFO;
+        };
+    }
+
+    private void record(int kind, MessageType type, int neighbor, int index, int begin, long length) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail.get() >= capacity) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int slot = (int) seq & (capacity - 1);
+        int i = slot * STRIDE;
+        events[i] = System.nanoTime();
+        int typeOrdinal = type == null ? 0xff : type.ordinal();
+        events[i + 1] = (long) kind << 40 | (long) typeOrdinal << 32 | (neighbor & 0xffffffffL);
+        events[i + 2] = (long) index << 32 | (begin & 0xffffffffL);
+        events[i + 3] = length;
+        published.set(slot, seq);
+    }
+
+    public void run() {
+        if (level == Level.OFF) {
+            return;
+        }
+        try (Writer out = new BufferedWriter(new FileWriter(path, true))) {
+            StringBuilder line = new StringBuilder();
+            long reportedDrops = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                long seq = tail.get();
+                int slot = (int) seq & (capacity - 1);
+                if (published.get(slot) != seq) {
+                    long drops = dropped.sum();
+                    if (drops != reportedDrops) {
+                        out.write(String.format("Peer %s dropped %s log events%n", peerId, drops - reportedDrops));
+                        reportedDrops = drops;
+                    }
+                    out.flush();
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    continue;
+                }
+                line.setLength(0);
+                format(line, seq, slot * STRIDE);
+                tail.set(seq + 1);
+                out.append(line);
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    private void format(StringBuilder line, long seq, int i) {
+        int kind = (int) (events[i + 1] >>> 40);
+        int typeOrdinal = (int) (events[i + 1] >>> 32) & 0xff;
+        int neighbor = (int) events[i + 1];
+        int index = (int) (events[i + 2] >>> 32);
+        int begin = (int) events[i + 2];
+        long length = events[i + 3];
+        line.append('[').append(TIME.format(Instant.ofEpochSecond(0, epochNanos + events[i]))).append("] #")
+                .append(seq).append(' ');
+        switch (kind) {
+            case SENT, RECEIVED -> {
+                MessageType type = TYPES[typeOrdinal];
+                String name = type.toString().toLowerCase();
+                line.append(kind == SENT
+                        ? String.format("Peer %s sent %s to Peer %s", peerId, name, neighbor)
+                        : String.format("Peer %s received %s from Peer %s", peerId, name, neighbor));
+                switch (type) {
+                    case HANDSHAKE -> line.append(" id=").append(index);
+                    case HAVE -> line.append(" index=").append(index);
+                    case REQUEST, CANCEL, PIECE -> line.append(" index=").append(index)
+                            .append(" begin=").append(begin).append(" length=").append(length);
+                    default -> line.append(" length=").append(length);
+                }
+            }
+            case CONNECTED -> line.append(String.format("Peer %s connected to Peer %s", peerId, neighbor));
+            case CLOSED -> line.append(String.format("Peer %s closed connection with Peer %s", peerId, neighbor));
+            case DISCONNECTED -> line.append(String.format("Peer %s-%s connection was closed", peerId, neighbor));
+            case PIECE_COMPLETED -> line.append(String.format(
+                    "Peer %s has downloaded the piece %s. Now the number of pieces it has is %s",
+                    peerId, index, length));
+            case PIECE_DISCARDED -> line.append(String.format(
+                    "Peer %s discarded piece %s after a failed hash check", peerId, index));
+            case RESUMED -> line.append(String.format("Peer %s resumed with %s pieces", peerId, index));
+            default -> line.append("unknown event ").append(kind);
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private static int intAt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16
+                | (b[offset + 2] & 0xff) << 8 | b[offset + 3] & 0xff;
+    }
+}
@@ -0,0 +1,98 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded selector loop that multiplexes the non-blocking connections registered with it.
+ * Other threads hand work to the loop through {@link #execute(Runnable)}.
+ */
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Thread thread;
+
+    public EventLoop() throws IOException {
+        selector = Selector.open();
+    }
+
+    public void register(Connection conn, SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.attach(this, key);
+            } catch (ClosedChannelException e) {
+                conn.close();
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!thread.isInterrupted()) {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            conn.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        conn.close();
+                    } catch (RuntimeException e) {
+                        // A bug triggered by one neighbor must not take down every connection
+                        // on this loop.
+                        System.err.println(e.toString());
+                        conn.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println(e.toString());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println(e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the raw byte stream of a connection into message frames. The first frame is always the
+ * fixed-size handshake; every later frame is a 4-byte length followed by the type byte and payload.
+ * Bytes may arrive in arbitrary chunks, so incomplete frames stay buffered until the rest is read.
+ * Complete frames are handed out as {@link Message} views over the receive buffer without copying.
+ */
+public class FrameDecoder {
+    public static final int HANDSHAKE_LENGTH = 32;
+
+    private final ByteBuffer buffer;
+    private final int maxMessageLength;
+    private int start = 0;
+    private boolean handshakeReceived = false;
+
+    public FrameDecoder(int maxMessageLength) {
+        this.maxMessageLength = maxMessageLength;
+        buffer = ByteBuffer.allocate(4 + maxMessageLength);
+    }
+
+    /** Reads more bytes from the channel, invalidating any view handed out by {@link #next}. */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (start > 0) {
+            buffer.limit(buffer.position()).position(start);
+            buffer.compact();
+            start = 0;
+        }
+        return channel.read(buffer);
+    }
+
+    public boolean next(Message msg) throws ProtocolException {
+        int available = buffer.position() - start;
+        int frameLength;
+        if (!handshakeReceived) {
+            frameLength = HANDSHAKE_LENGTH;
+        } else if (available >= 4) {
+            int length = buffer.getInt(start);
+            if (length < 1 || length > maxMessageLength) {
+                throw new ProtocolException("Invalid message length " + length);
+            }
+            frameLength = 4 + length;
+        } else {
+            return false;
+        }
+        if (available < frameLength) {
+            return false;
+        }
+        if (!handshakeReceived && !Message.hasHandshakeHeader(buffer, start)) {
+            throw new ProtocolException("Invalid handshake header");
+        }
+        msg.wrap(buffer, start, !handshakeReceived);
+        if (msg.type == null) {
+            throw new ProtocolException("Unknown message type " + buffer.get(start + 4));
+        }
+        // Type code 10 only names the handshake, which never comes framed by a length.
+        if (handshakeReceived && msg.type == MessageType.HANDSHAKE) {
+            throw new ProtocolException("Unexpected handshake");
+        }
+        handshakeReceived = true;
+        start += frameLength;
+        return true;
+    }
+}
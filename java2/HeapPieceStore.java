@@ -0,0 +1,122 @@
+package bittorrent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps every piece in a heap map, writing received pieces through to the output file. */
+public class HeapPieceStore implements PieceStore {
+    private final Map<Integer, byte[]> pieces = new ConcurrentHashMap<>();
+    private final long fileSize;
+    private final int pieceSize;
+
+    private FileChannel fileChannel;
+
+    public HeapPieceStore(String path, long fileSize, int pieceSize, boolean complete, boolean preallocate)
+            throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        if (complete) {
+            try (FileInputStream fileInputStream = new FileInputStream(path)) {
+                for (int i = 0; (long) i * pieceSize < fileSize; i++) {
+                    byte[] piece = new byte[(int) Math.min(pieceSize, fileSize - (long) i * pieceSize)];
+                    fileInputStream.readNBytes(piece, 0, piece.length);
+                    pieces.put(i, piece);
+                }
+            }
+        } else {
+            File file = new File(path);
+            file.getParentFile().mkdirs();
+            fileChannel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (preallocate) {
+                PieceStore.preallocate(fileChannel, fileSize);
+            } else {
+                fileChannel.truncate(fileSize);
+            }
+        }
+    }
+
+    public ByteBuffer read(int index) {
+        return ByteBuffer.wrap(piece(index));
+    }
+
+    public ByteBuffer read(int index, int begin, int length) {
+        return ByteBuffer.wrap(piece(index), begin, length);
+    }
+
+    private byte[] piece(int index) {
+        byte[] piece = pieces.get(index);
+        if (piece == null && fileChannel != null) {
+            piece = pieces.computeIfAbsent(index, this::readFromFile);
+        }
+        return piece;
+    }
+
+    // Pieces written before a restart are only on disk until they are first read.
+    private byte[] readFromFile(int index) {
+        byte[] piece = new byte[(int) Math.min(pieceSize, fileSize - (long) index * pieceSize)];
+        ByteBuffer buffer = ByteBuffer.wrap(piece);
+        try {
+            while (buffer.hasRemaining()
+                    && fileChannel.read(buffer, (long) index * pieceSize + buffer.position()) >= 0) {
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return piece;
+    }
+
+    public void write(int index, int begin, ByteBuffer src, int offset, int length) throws IOException {
+        byte[] piece = pieces.computeIfAbsent(index,
+                i -> new byte[(int) Math.min(pieceSize, fileSize - (long) i * pieceSize)]);
+        src.get(offset, piece, begin, length);
+        ByteBuffer block = ByteBuffer.wrap(piece, begin, length);
+        long position = (long) index * pieceSize + begin;
+        while (block.hasRemaining()) {
+            fileChannel.write(block, position + block.position() - begin);
+        }
+    }
+
+    // Only the disk writer thread writes, so the run can go out as one gathering write at the
+    // channel position.
+    @Override
+    public void write(List<BlockWrite> run) throws IOException {
+        ByteBuffer[] blocks = new ByteBuffer[run.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            BlockWrite write = run.get(i);
+            byte[] piece = pieces.computeIfAbsent(write.index,
+                    j -> new byte[(int) Math.min(pieceSize, fileSize - (long) j * pieceSize)]);
+            write.data.get(write.data.position(), piece, write.begin, write.length);
+            blocks[i] = ByteBuffer.wrap(piece, write.begin, write.length);
+        }
+        ByteBuffer last = blocks[blocks.length - 1];
+        fileChannel.position(run.get(0).position);
+        while (last.hasRemaining()) {
+            fileChannel.write(blocks);
+        }
+    }
+
+    public void sync() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.force(false);
+        }
+    }
+
+    public FileChannel fileChannel() {
+        return null;
+    }
+
+    public void close() throws IOException {
+        if (fileChannel != null) {
+            fileChannel.close();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Links between peers in the same JVM, so that swarms of thousands of peers can be simulated
+ * without sockets. Each direction of a link is a bounded queue of written chunks: a writer blocks
+ * while LinkBufferSize bytes are in flight, and a chunk becomes readable once it has been
+ * serialized at the link's bandwidth and has then spent the link's latency in transit.
+ *
+ * <p>LinkLatencyMillis and LinkBandwidth (bytes per second, 0 for unlimited) are either a single
+ * value or a range {@code min-max}, from which every link draws its own value. Peers are found by
+ * port; the hostname is ignored. Links are blocking, so each connection gets its own threads,
+ * which should be virtual threads for large swarms.
+ */
+public class InMemoryTransport implements Transport {
+    private static InMemoryTransport shared;
+
+    private final Map<Integer, BlockingQueue<Link>> listeners = new ConcurrentHashMap<>();
+    private final long[] latencyMillis;
+    private final long[] bandwidth;
+    private final int bufferSize;
+    private final Random random;
+
+    public InMemoryTransport(String latencyMillis, String bandwidth, int bufferSize, long seed) {
+        this.latencyMillis = range(latencyMillis);
+        this.bandwidth = range(bandwidth);
+        this.bufferSize = bufferSize;
+        random = new Random(seed);
+    }
+
+    /** The network shared by every peer in this JVM that uses the memory transport. */
+    public static synchronized InMemoryTransport shared(Config config) {
+        if (shared == null) {
+            shared = new InMemoryTransport(config.getString("LinkLatencyMillis", "0"),
+                    config.getString("LinkBandwidth", "0"), config.getInt("LinkBufferSize", 262144),
+                    config.getInt("LinkSeed", 42));
+        }
+        return shared;
+    }
+
+    private static long[] range(String value) {
+        String[] bounds = value.strip().split("-");
+        long min = Long.parseLong(bounds[0].strip());
+        return new long[] {min, bounds.length > 1 ? Long.parseLong(bounds[1].strip()) : min};
+    }
+
+    private synchronized long draw(long[] range) {
+        return range[0] + (range[1] > range[0] ? (long) (random.nextDouble() * (range[1] - range[0] + 1)) : 0);
+    }
+
+    public Listener listen(String hostname, int port) throws IOException {
+        BlockingQueue<Link> pending = new LinkedBlockingQueue<>();
+        if (listeners.putIfAbsent(port, pending) != null) {
+            throw new IOException("Port " + port + " is already in use");
+        }
+        return new Listener() {
+            public Link accept() throws IOException {
+                try {
+                    return pending.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ClosedChannelException();
+                }
+            }
+
+            public void close() {
+                listeners.remove(port, pending);
+            }
+        };
+    }
+
+    public Link connect(String hostname, int port) throws IOException {
+        BlockingQueue<Link> pending = listeners.get(port);
+        if (pending == null) {
+            throw new ConnectException("Nothing listens on port " + port);
+        }
+        long latency = TimeUnit.MILLISECONDS.toNanos(draw(latencyMillis));
+        long bytesPerSecond = draw(bandwidth);
+        Pipe out = new Pipe(latency, bytesPerSecond, bufferSize);
+        Pipe in = new Pipe(latency, bytesPerSecond, bufferSize);
+        pending.add(new MemoryLink(out, in));
+        return new MemoryLink(in, out);
+    }
+
+    public boolean selectable() {
+        return false;
+    }
+
+    private static class MemoryLink implements Link {
+        private final Pipe in;
+        private final Pipe out;
+
+        MemoryLink(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return in.read(dst);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return (int) out.write(new ByteBuffer[] {src}, 0, 1);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return out.write(srcs, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return out.write(srcs, 0, srcs.length);
+        }
+
+        public boolean isBlocking() {
+            return true;
+        }
+
+        public boolean isOpen() {
+            return !in.closed;
+        }
+
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    /** One direction of a link. */
+    private static class Pipe {
+        private final long latency;
+        private final double nanosPerByte;
+        private final int capacity;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        private int buffered = 0;
+        private long busyUntil = System.nanoTime();
+        private volatile boolean closed = false;
+
+        Pipe(long latency, long bytesPerSecond, int capacity) {
+            this.latency = latency;
+            this.nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+            this.capacity = capacity;
+        }
+
+        // Blocks until everything is buffered, like a blocking socket; large writes go out as
+        // several chunks so that they fit the buffer.
+        long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long total = 0;
+            long pending = 0;
+            for (int j = offset; j < offset + length; j++) {
+                pending += srcs[j].remaining();
+            }
+            int i = offset;
+            lock.lock();
+            try {
+                while (true) {
+                    while (i < offset + length && !srcs[i].hasRemaining()) {
+                        i++;
+                    }
+                    if (i == offset + length) {
+                        return total;
+                    }
+                    while (buffered == capacity && !closed) {
+                        writable.awaitUninterruptibly();
+                    }
+                    if (closed) {
+                        throw new ClosedChannelException();
+                    }
+                    byte[] data = new byte[(int) Math.min(capacity - buffered, pending - total)];
+                    int n = 0;
+                    for (; i < offset + length && n < data.length; i++) {
+                        int k = Math.min(srcs[i].remaining(), data.length - n);
+                        srcs[i].get(data, n, k);
+                        n += k;
+                        if (srcs[i].hasRemaining()) {
+                            break;
+                        }
+                    }
+                    long now = System.nanoTime();
+                    busyUntil = Math.max(now, busyUntil) + (long) (n * nanosPerByte);
+                    chunks.add(new Chunk(data, n, busyUntil + latency));
+                    buffered += n;
+                    total += n;
+                    readable.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int read(ByteBuffer dst) throws IOException {
+            lock.lock();
+            try {
+                while (true) {
+                    Chunk chunk = chunks.peek();
+                    if (chunk == null) {
+                        if (closed) {
+                            return -1;
+                        }
+                        readable.awaitUninterruptibly();
+                        continue;
+                    }
+                    long wait = chunk.deliverAt - System.nanoTime();
+                    if (wait > 0) {
+                        readable.awaitNanos(wait);
+                        continue;
+                    }
+                    int n = Math.min(dst.remaining(), chunk.length - chunk.offset);
+                    dst.put(chunk.data, chunk.offset, n);
+                    chunk.offset += n;
+                    if (chunk.offset == chunk.length) {
+                        chunks.poll();
+                    }
+                    buffered -= n;
+                    writable.signal();
+                    return n;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClosedChannelException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                readable.signalAll();
+                writable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final int length;
+        final long deliverAt;
+        int offset = 0;
+
+        Chunk(byte[] data, int length, long deliverAt) {
+            this.data = data;
+            this.length = length;
+            this.deliverAt = deliverAt;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package bittorrent;
+
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The byte stream between a {@link Connection} and one neighbor, as provided by a {@link Transport}.
+ * A blocking link is served by a reader and a writer thread; a non-blocking one is a socket
+ * registered with an {@link EventLoop}.
+ */
+public interface Link extends ByteChannel, GatheringByteChannel {
+
+    boolean isBlocking();
+
+    /** The socket to register with an event loop, or null if the link is not selectable. */
+    default SocketChannel socket() {
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package bittorrent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Serves and stores pieces straight from memory mappings of the file, so piece data lives in the
+ * OS page cache instead of the heap. A single mapping is limited to 2 GB, so larger files are
+ * mapped in segments that each hold a whole number of pieces.
+ */
+public class MappedPieceStore implements PieceStore {
+    private final FileChannel fileChannel;
+    private final MappedByteBuffer[] segments;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int piecesPerSegment;
+
+    public MappedPieceStore(String path, long fileSize, int pieceSize, boolean complete, boolean preallocate)
+            throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        piecesPerSegment = Integer.MAX_VALUE / pieceSize;
+        long segmentSize = (long) piecesPerSegment * pieceSize;
+
+        FileChannel.MapMode mode;
+        if (complete) {
+            fileChannel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ);
+            mode = FileChannel.MapMode.READ_ONLY;
+        } else {
+            File file = new File(path);
+            file.getParentFile().mkdirs();
+            fileChannel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mode = FileChannel.MapMode.READ_WRITE;
+            if (preallocate) {
+                PieceStore.preallocate(fileChannel, fileSize);
+            } else {
+                fileChannel.truncate(fileSize);
+            }
+        }
+        segments = new MappedByteBuffer[(int) ((fileSize + segmentSize - 1) / segmentSize)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = i * segmentSize;
+            segments[i] = fileChannel.map(mode, position, Math.min(segmentSize, fileSize - position));
+        }
+    }
+
+    public ByteBuffer read(int index) {
+        return segments[index / piecesPerSegment].slice(offsetOf(index), pieceLength(index));
+    }
+
+    public ByteBuffer read(int index, int begin, int length) {
+        return segments[index / piecesPerSegment].slice(offsetOf(index) + begin, length);
+    }
+
+    public void write(int index, int begin, ByteBuffer src, int offset, int length) {
+        segments[index / piecesPerSegment].put(offsetOf(index) + begin, src, offset, length);
+    }
+
+    private int offsetOf(int index) {
+        return (index % piecesPerSegment) * pieceSize;
+    }
+
+    private int pieceLength(int index) {
+        return (int) Math.min(pieceSize, fileSize - (long) index * pieceSize);
+    }
+
+    public void sync() {
+        for (MappedByteBuffer segment : segments) {
+            if (!segment.isReadOnly()) {
+                segment.force();
+            }
+        }
+    }
+
+    public FileChannel fileChannel() {
+        return fileChannel;
+    }
+
+    public void close() throws IOException {
+        sync();
+        fileChannel.close();
+    }
+}
@@ -1,91 +1,182 @@
+package bittorrent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
 import java.util.BitSet;
 
+/**
+ * Encodes outgoing messages and exposes received ones as a reusable view over the receive buffer.
+ * A view is only valid until the buffer it wraps is read into again, so handlers must copy out
+ * anything they keep.
+ */
 public class Message {
     public static String P2PFILESHARINGPROJ = "P2PFILESHARINGPROJ";
 
-    public final int length;
-    public final MessageType type;
-    public final byte[] payload;
+    private static final byte[] HANDSHAKE_HEADER = P2PFILESHARINGPROJ.getBytes();
+    // Outgoing frames are encoded straight into their array, without a ByteBuffer around it.
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    public int length;
+    public MessageType type;
+
+    private ByteBuffer buffer;
+    private int payloadOffset;
 
-    public Message(int length, MessageType type, byte[] payload) {
-        this.length = length;
-        this.type = type;
-        this.payload = payload;
+    public void wrap(ByteBuffer buffer, int offset, boolean handshake) {
+        this.buffer = buffer;
+        if (handshake) {
+            length = 1;
+            type = MessageType.HANDSHAKE;
+            payloadOffset = offset + 28;
+        } else {
+            length = buffer.getInt(offset);
+            type = MessageType.valueOf(buffer.get(offset + 4));
+            payloadOffset = offset + 5;
+        }
     }
 
-    public byte[] toBytes() {
-        return concat(intToBytes(this.length), new byte[] {(byte) this.type.code}, payload);
+    /** Where the whole frame, length prefix included, starts within {@link #buffer()}. */
+    public int frameOffset() {
+        return type == MessageType.HANDSHAKE ? payloadOffset - 28 : payloadOffset - 5;
     }
 
-    private static byte[] concat(byte[] first, byte[]... rest) {
-        int totalLength = first.length;
-        for (byte[] array : rest) {
-            totalLength += array.length;
-        }
-        byte[] result = Arrays.copyOf(first, totalLength);
-        int offset = first.length;
-        for (byte[] array : rest) {
-            System.arraycopy(array, 0, result, offset, array.length);
-            offset += array.length;
-        }
-        return result;
+    public int frameLength() {
+        return type == MessageType.HANDSHAKE ? FrameDecoder.HANDSHAKE_LENGTH : 4 + length;
+    }
+
+    public int payloadLength() {
+        return type == MessageType.HANDSHAKE ? 4 : length - 1;
+    }
+
+    public int peerId() {
+        return buffer.getInt(payloadOffset);
+    }
+
+    public int index() {
+        return buffer.getInt(payloadOffset);
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int begin() {
+        return buffer.getInt(payloadOffset + 4);
+    }
+
+    /** Offset of the file bytes of a PIECE message within {@link #buffer()}. */
+    public int blockOffset() {
+        return payloadOffset + 8;
+    }
+
+    /** Length of the block a REQUEST or CANCEL names or a PIECE carries. */
+    public int blockLength() {
+        return type == MessageType.PIECE ? length - 9 : buffer.getInt(payloadOffset + 8);
+    }
+
+    public BitSet toBitSet() {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(payloadOffset + payloadLength()).position(payloadOffset);
+        return BitSet.valueOf(payload);
     }
 
     public static byte[] handshake(int peerId) {
-        return concat(P2PFILESHARINGPROJ.getBytes(), new byte[10], intToBytes(peerId));
+        return ByteBuffer.allocate(FrameDecoder.HANDSHAKE_LENGTH)
+                .put(HANDSHAKE_HEADER).position(28).putInt(peerId).array();
     }
 
     public static byte[] choke()  {
-        return new Message(1, MessageType.CHOKE, new byte[] {}).toBytes();
+        return frame(1, MessageType.CHOKE);
     }
 
     public static byte[] unchoke() {
-        return new Message(1, MessageType.UNCHOKE, new byte[] {}).toBytes();
+        return frame(1, MessageType.UNCHOKE);
     }
 
     public static byte[] interested()  {
-        return new Message(1, MessageType.INTERESTED, new byte[] {}).toBytes();
+        return frame(1, MessageType.INTERESTED);
     }
 
     public static byte[] notinterested()  {
-        return new Message(1, MessageType.NOT_INTERESTED, new byte[] {}).toBytes();
+        return frame(1, MessageType.NOT_INTERESTED);
     }
 
     public static byte[] have(int index)  {
-        return new Message(5, MessageType.HAVE, intToBytes(index)).toBytes();
+        byte[] frame = frame(5, MessageType.HAVE);
+        INT.set(frame, 5, index);
+        return frame;
     }
 
     public static byte[] bitfield(BitSet bitarray) {
-        return new Message(5 + (bitarray.length() + 7)/8, MessageType.BITFIELD, bitarray.toByteArray()).toBytes();
+        byte[] bytes = bitarray.toByteArray();
+        byte[] frame = frame(1 + bytes.length, MessageType.BITFIELD);
+        System.arraycopy(bytes, 0, frame, 5, bytes.length);
+        return frame;
     }
 
-    public static byte[] request(int index) {
-        return new Message(5, MessageType.REQUEST, intToBytes(index)).toBytes();
+    public static byte[] request(int index, int begin, int length) {
+        return blockFrame(MessageType.REQUEST, index, begin, length);
     }
 
-    public static byte[] piece(int index, byte[] filePiece) {
-        return new Message(5, MessageType.PIECE, concat(intToBytes(index), filePiece)).toBytes();
+    public static byte[] cancel(int index, int begin, int length) {
+        return blockFrame(MessageType.CANCEL, index, begin, length);
     }
 
-    public static byte[] intToBytes(int n) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4);
-        byteBuffer.putInt(n);
-        return byteBuffer.array();
+    /** Header of a PIECE message; the block bytes are written after it without being copied in. */
+    public static byte[] pieceHeader(int index, int begin, int length) {
+        byte[] header = new byte[13];
+        INT.set(header, 0, 9 + length);
+        header[4] = (byte) MessageType.PIECE.code;
+        INT.set(header, 5, index);
+        INT.set(header, 9, begin);
+        return header;
     }
 
-    public static Message parse(byte[] msg) {
-        if (new String(Arrays.copyOfRange(msg, 0, 18)).equals(P2PFILESHARINGPROJ)) {
-            return new Message(1, MessageType.HANDSHAKE, Arrays.copyOfRange(msg, 28, 32));
-        } else {
-            return new Message(bytesToInt(Arrays.copyOfRange(msg, 0, 4)),
-                               MessageType.valueOf(msg[4]),
-                               Arrays.copyOfRange(msg, 5, msg.length));
+    private static byte[] blockFrame(MessageType type, int index, int begin, int length) {
+        byte[] frame = frame(13, type);
+        INT.set(frame, 5, index);
+        INT.set(frame, 9, begin);
+        INT.set(frame, 13, length);
+        return frame;
+    }
+
+    private static byte[] frame(int length, MessageType type) {
+        byte[] frame = new byte[4 + length];
+        INT.set(frame, 0, length);
+        frame[4] = (byte) type.code;
+        return frame;
+    }
+
+    public static MessageType typeOf(byte[] msg) {
+        return typeOf(msg, msg.length);
+    }
+
+    /** The type of a frame held in the first {@code length} bytes of {@code msg}. */
+    public static MessageType typeOf(byte[] msg, int length) {
+        if (length == FrameDecoder.HANDSHAKE_LENGTH && startsWithHandshakeHeader(msg)) {
+            return MessageType.HANDSHAKE;
         }
+        return MessageType.valueOf(msg[4]);
     }
 
-    private static int bytesToInt(byte[] b) {
-        return ByteBuffer.wrap(b).getInt();
+    /** Whether the bytes at {@code offset} start with the 18-byte handshake header. */
+    public static boolean hasHandshakeHeader(ByteBuffer buffer, int offset) {
+        for (int i = 0; i < HANDSHAKE_HEADER.length; i++) {
+            if (buffer.get(offset + i) != HANDSHAKE_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWithHandshakeHeader(byte[] msg) {
+        for (int i = 0; i < HANDSHAKE_HEADER.length; i++) {
+            if (msg[i] != HANDSHAKE_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 }
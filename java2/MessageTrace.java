@@ -0,0 +1,295 @@
+package bittorrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every message a peer sends and receives, in the order it happened, to
+ * {@code trace_peer_<id>.bin} when {@code Trace=true}. {@link TraceReplay} feeds the recorded
+ * messages back into a fresh peer to measure what handling them costs.
+ *
+ * <p>The file starts with a header describing the peer and its file, followed by one record per
+ * message: the nanoseconds since the previous record, whether it was received or sent, the number
+ * of the connection it went over, and the frame exactly as on the wire. Sent PIECE frames keep only
+ * their 13-byte header, since the block is in the file anyway. Numbers are varints, so a HAVE takes
+ * about 15 bytes.
+ *
+ * <p>Like {@link EventLog}, connection threads only copy the frame into a ring buffer of
+ * TraceBufferSize bytes, claimed with a CAS, and a background thread writes the file. Unlike log
+ * events, records are never dropped, since a replay needs all of them: a connection only waits if
+ * the writer has fallen a whole ring behind. A trace of a killed peer ends with a partial record
+ * that the reader ignores.
+ */
+public class MessageTrace implements Runnable, Closeable {
+    public static final int RECEIVED = 0;
+    public static final int SENT = 1;
+
+    private static final int MAGIC = 0x42545452;
+    private static final int VERSION = 1;
+    // A record in the ring is its size, rounded up to 8 bytes, then the connection, the direction,
+    // the frame length, the time and the frame. The size is stored last to publish the record; it
+    // is negative for space the writer skips, such as the padding up to the start of the ring.
+    private static final int HEADER = 24;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long FLUSH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final DataOutputStream out;
+    private final byte[] ring;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    // Only the writer moves these.
+    private volatile long tail = 0;
+    private volatile long flushed = 0;
+    private long last = System.nanoTime();
+    private volatile boolean closing = false;
+
+    /** A trace that records nothing. */
+    public MessageTrace() {
+        out = null;
+        ring = null;
+    }
+
+    public MessageTrace(String path, Peer peer, int bufferSize) throws IOException {
+        // Room for at least two of the largest frames, so that a record always fits.
+        int capacity = Math.max(bufferSize, 2 * (HEADER + 8 + peer.maxMessageLength));
+        ring = new byte[Integer.highestOneBit(capacity - 1) << 1];
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(peer.peerId);
+        out.writeInt(peer.hasFile);
+        out.writeLong(peer.fileSize);
+        out.writeInt(peer.pieceSize);
+        out.writeInt(peer.blockSize);
+        out.writeUTF(peer.filename);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    public boolean enabled() {
+        return out != null;
+    }
+
+    /** Numbers a new connection; its messages are recorded under this number. */
+    public int opened() {
+        return connections.getAndIncrement();
+    }
+
+    /** Records a received message; the view is only read here, never kept. */
+    public void received(int connection, Message msg) {
+        if (out != null) {
+            record(RECEIVED, connection, msg.buffer().array(), msg.frameOffset(), msg.frameLength());
+        }
+    }
+
+    public void sent(int connection, byte[] frame) {
+        if (out != null) {
+            record(SENT, connection, frame, 0, frame.length);
+        }
+    }
+
+    private void record(int direction, int connection, byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            System.err.printf("Not tracing a frame of %s bytes at %s in %s%n", length, offset, bytes.length);
+            return;
+        }
+        int size = (HEADER + length + 7) & ~7;
+        int mask = ring.length - 1;
+        long start;
+        int padding;
+        while (true) {
+            start = head.get();
+            int at = (int) start & mask;
+            padding = at + size > ring.length ? ring.length - at : 0;
+            long end = start + padding + size;
+            if (end - tail > ring.length) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            } else if (head.compareAndSet(start, end)) {
+                break;
+            }
+        }
+        int at = (int) start & mask;
+        if (padding > 0) {
+            INT.setRelease(ring, at, -padding);
+            at = 0;
+        }
+        // A claimed slot is always published, or the writer would wait at it forever; one that
+        // could not be filled is published as padding and skipped.
+        boolean filled = false;
+        try {
+            INT.set(ring, at + 4, connection);
+            INT.set(ring, at + 8, direction);
+            INT.set(ring, at + 12, length);
+            LONG.set(ring, at + 16, System.nanoTime());
+            System.arraycopy(bytes, offset, ring, at + HEADER, length);
+            filled = true;
+        } finally {
+            INT.setRelease(ring, at, filled ? size : -size);
+        }
+    }
+
+    /** Writes records to the file as they are published, until the trace is closed. */
+    public void run() {
+        if (out == null) {
+            return;
+        }
+        try (out) {
+            while (true) {
+                if (!writeNext()) {
+                    out.flush();
+                    flushed = tail;
+                    if (closing || Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    // Writes the record at the tail in the file format; false if it has not been published yet.
+    private boolean writeNext() throws IOException {
+        long position = tail;
+        int at = (int) position & (ring.length - 1);
+        int size = (int) INT.getAcquire(ring, at);
+        if (size == 0) {
+            return false;
+        }
+        if (size > 0) {
+            // Records are written in the order they were claimed, which may differ from the order of
+            // their clocks by a few nanoseconds.
+            long time = (long) LONG.get(ring, at + 16);
+            writeVarint(Math.max(0, time - last));
+            last = Math.max(last, time);
+            out.writeByte((int) INT.get(ring, at + 8));
+            writeVarint((int) INT.get(ring, at + 4));
+            int length = (int) INT.get(ring, at + 12);
+            writeVarint(length);
+            out.write(ring, at + HEADER, length);
+        }
+        int span = Math.abs(size);
+        Arrays.fill(ring, at, at + span, (byte) 0);
+        tail = position + span;
+        return true;
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /** Waits, for at most a second, until everything recorded so far is in the file. */
+    public void flush() {
+        if (out == null) {
+            return;
+        }
+        long target = head.get();
+        long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+        while (flushed - target < 0 && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+
+    /** Lets the writer finish what has been recorded and close the file. */
+    public void close() {
+        closing = true;
+        flush();
+    }
+
+    /** Reads a trace one record at a time, reusing the same fields for every record. */
+    public static class Reader implements Closeable {
+        public final int peerId;
+        public final int hasFile;
+        public final long fileSize;
+        public final int pieceSize;
+        public final int blockSize;
+        public final String filename;
+        public final long startMillis;
+
+        /** Nanoseconds since the trace started. */
+        public long time = 0;
+        public int direction;
+        public int connection;
+        public byte[] frame = new byte[64];
+        public int length;
+
+        private final DataInputStream in;
+
+        public Reader(String path) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(path + " is not a message trace");
+            }
+            peerId = in.readInt();
+            hasFile = in.readInt();
+            fileSize = in.readLong();
+            pieceSize = in.readInt();
+            blockSize = in.readInt();
+            filename = in.readUTF();
+            startMillis = in.readLong();
+        }
+
+        /** Moves to the next record; false at the end of the trace. */
+        public boolean next() throws IOException {
+            try {
+                long delta = readVarint();
+                int dir = in.readUnsignedByte();
+                int conn = (int) readVarint();
+                int len = (int) readVarint();
+                if (len > frame.length) {
+                    frame = new byte[Math.max(len, frame.length * 2)];
+                }
+                in.readFully(frame, 0, len);
+                time += delta;
+                direction = dir;
+                connection = conn;
+                length = len;
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        /** The type of the current frame. */
+        public MessageType type() {
+            return Message.typeOf(frame, length);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,3 +1,5 @@
+package bittorrent;
+
 public enum MessageType {
     HANDSHAKE(10),
     CHOKE(0),
@@ -7,7 +9,16 @@ public enum MessageType {
     HAVE(4),
     BITFIELD(5),
     REQUEST(6),
-    PIECE(7);
+    PIECE(7),
+    CANCEL(8);
+
+    private static final MessageType[] BY_CODE = new MessageType[16];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
 
     public final int code;
 
@@ -16,11 +27,6 @@ public enum MessageType {
     }
 
     public static MessageType valueOf(byte b) {
-        for (MessageType type : MessageType.values()) {
-            if (type.code == b) {
-                return type;
-            }
-        }
-        return null;
+        return b >= 0 && b < BY_CODE.length ? BY_CODE[b] : null;
     }
 }
@@ -0,0 +1,152 @@
+package bittorrent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Per-piece hashes of the shared file. The seeder generates them in parallel across all cores and
+ * writes them to a metainfo file that leechers load to verify every downloaded piece.
+ */
+public class Metainfo {
+    public final String algorithm;
+    public final long fileSize;
+    public final int pieceSize;
+
+    private final byte[][] hashes;
+    private final ThreadLocal<MessageDigest> digests;
+
+    private Metainfo(String algorithm, long fileSize, int pieceSize, byte[][] hashes) {
+        this.algorithm = algorithm;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.hashes = hashes;
+        digests = ThreadLocal.withInitial(() -> newDigest(algorithm));
+    }
+
+    public static Metainfo generate(String path, long fileSize, int pieceSize, String algorithm) throws IOException {
+        int numPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        byte[][] hashes = new byte[numPieces][];
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(pieceSize));
+        ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> newDigest(algorithm));
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            pool.submit(() -> IntStream.range(0, numPieces).parallel().forEach(i -> {
+                ByteBuffer buffer = buffers.get();
+                buffer.clear().limit((int) Math.min(pieceSize, fileSize - (long) i * pieceSize));
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, (long) i * pieceSize + buffer.position()) < 0) {
+                            throw new IOException("Unexpected end of " + path);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                MessageDigest digest = digests.get();
+                digest.update(buffer.flip());
+                hashes[i] = digest.digest();
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return new Metainfo(algorithm, fileSize, pieceSize, hashes);
+    }
+
+    public static Metainfo read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            String algorithm = in.readUTF();
+            long fileSize = in.readLong();
+            int pieceSize = in.readInt();
+            byte[][] hashes = new byte[in.readInt()][];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = new byte[in.readUnsignedByte()];
+                in.readFully(hashes[i]);
+            }
+            return new Metainfo(algorithm, fileSize, pieceSize, hashes);
+        }
+    }
+
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(path))) {
+            out.writeUTF(algorithm);
+            out.writeLong(fileSize);
+            out.writeInt(pieceSize);
+            out.writeInt(hashes.length);
+            for (byte[] hash : hashes) {
+                out.writeByte(hash.length);
+                out.write(hash);
+            }
+        }
+    }
+
+    /** Whether these are the hashes of a file of the given size split into the given pieces. */
+    public boolean matches(long fileSize, int pieceSize) {
+        return this.fileSize == fileSize && this.pieceSize == pieceSize
+                && hashes.length == (fileSize + pieceSize - 1) / pieceSize;
+    }
+
+    public boolean verify(int index, ByteBuffer piece) {
+        MessageDigest digest = digests.get();
+        digest.update(piece.duplicate());
+        return Arrays.equals(digest.digest(), hashes[index]);
+    }
+
+    /** Hashes every piece in the store in parallel and returns the pieces that match. */
+    public BitSet verifyAll(PieceStore pieces) throws IOException {
+        BitSet valid = new BitSet(hashes.length);
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> IntStream.range(0, hashes.length).parallel().forEach(i -> {
+                if (verify(i, pieces.read(i))) {
+                    synchronized (valid) {
+                        valid.set(i);
+                    }
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        return valid;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Config config = new Config("Common.cfg");
+        String filename = config.getString("FileName");
+        generate(filename, config.getLong("FileSize"), config.getInt("PieceSize"),
+                config.getString("HashAlgorithm", "SHA-256"))
+                .write(config.getString("MetainfoFile", filename + ".meta"));
+    }
+}
@@ -0,0 +1,136 @@
+package bittorrent;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Serves the metrics of every peer in this JVM at {@code http://127.0.0.1:<MetricsPort>/metrics} in
+ * the Prometheus text format. Samples are labelled with the peer id and, for connections, the
+ * neighbor id.
+ */
+public class MetricsServer {
+    private static final List<PeerMetrics> registered = new CopyOnWriteArrayList<>();
+    private static HttpServer server;
+
+    public static synchronized void register(PeerMetrics metrics, int port) {
+        registered.add(metrics);
+        if (server != null || port <= 0) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+        } catch (IOException e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    static String render() {
+        StringBuilder out = new StringBuilder();
+        peerFamily(out, "bittorrent_bytes_received_total", "counter", "Bytes read from neighbors", PeerMetrics::getBytesIn);
+        peerFamily(out, "bittorrent_bytes_sent_total", "counter", "Bytes written to neighbors", PeerMetrics::getBytesOut);
+        peerFamily(out, "bittorrent_pieces_completed_total", "counter", "Pieces downloaded and verified", PeerMetrics::getPiecesCompleted);
+        peerFamily(out, "bittorrent_pieces_per_second", "gauge", "Moving average of the piece completion rate", PeerMetrics::getPiecesPerSecond);
+        peerFamily(out, "bittorrent_connections", "gauge", "Open connections", PeerMetrics::getConnections);
+        peerFamily(out, "bittorrent_outstanding_requests", "gauge", "Block requests awaiting a PIECE", PeerMetrics::getOutstandingRequests);
+        peerFamily(out, "bittorrent_disk_queue_depth", "gauge", "Blocks waiting for the disk writer", PeerMetrics::getDiskQueueDepth);
+        summary(out, "bittorrent_request_latency_seconds", "Time from REQUEST to PIECE", m -> m.requestLatency);
+        summary(out, "bittorrent_choked_period_seconds", "Length of periods choked by a neighbor", m -> m.chokedPeriods);
+
+        connectionFamily(out, "bittorrent_connection_bytes_received_total", "counter", c -> c.bytesIn.sum());
+        connectionFamily(out, "bittorrent_connection_bytes_sent_total", "counter", c -> c.bytesOut.sum());
+        connectionFamily(out, "bittorrent_connection_download_rate_bytes", "gauge", c -> c.downloadRate.rate());
+        connectionFamily(out, "bittorrent_connection_upload_rate_bytes", "gauge", c -> c.uploadRate.rate());
+        connectionFamily(out, "bittorrent_connection_outstanding_requests", "gauge", Connection::outstandingRequests);
+        connectionSummary(out, "bittorrent_connection_request_latency_seconds", "Time from REQUEST to PIECE",
+                c -> c.requestLatency);
+        connectionSummary(out, "bittorrent_connection_choking_period_seconds", "Length of periods we choked the neighbor",
+                c -> c.chokingTime.periods());
+        connectionFamily(out, "bittorrent_connection_choked_by_neighbor_seconds_total", "counter",
+                c -> c.chokedByOtherTime.chokedNanos() / 1e9);
+        connectionFamily(out, "bittorrent_connection_unchoked_by_neighbor_seconds_total", "counter",
+                c -> c.chokedByOtherTime.unchokedNanos() / 1e9);
+        connectionFamily(out, "bittorrent_connection_choking_neighbor_seconds_total", "counter",
+                c -> c.chokingTime.chokedNanos() / 1e9);
+        return out.toString();
+    }
+
+    private static void peerFamily(StringBuilder out, String name, String type, String help,
+            ToDoubleFunction<PeerMetrics> value) {
+        header(out, name, type, help);
+        for (PeerMetrics metrics : registered) {
+            sample(out, name, "peer=\"" + metrics.peerId() + "\"", value.applyAsDouble(metrics));
+        }
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Function<PeerMetrics, Histogram> histogram) {
+        header(out, name, "summary", help);
+        for (PeerMetrics metrics : registered) {
+            summarySamples(out, name, "peer=\"" + metrics.peerId() + "\"", histogram.apply(metrics));
+        }
+    }
+
+    private static void connectionSummary(StringBuilder out, String name, String help,
+            Function<Connection, Histogram> histogram) {
+        header(out, name, "summary", help);
+        for (PeerMetrics metrics : registered) {
+            for (Connection conn : metrics.connections()) {
+                if (conn.otherPeerId >= 0) {
+                    summarySamples(out, name, labels(metrics, conn), histogram.apply(conn));
+                }
+            }
+        }
+    }
+
+    private static void summarySamples(StringBuilder out, String name, String labels, Histogram h) {
+        for (double q : new double[] {0.5, 0.9, 0.99}) {
+            sample(out, name, labels + ",quantile=\"" + q + "\"", h.percentile(q) / 1e9);
+        }
+        sample(out, name + "_sum", labels, h.sum() / 1e9);
+        sample(out, name + "_count", labels, h.count());
+    }
+
+    // Connections still waiting for the handshake have no neighbor id yet and are left out, so
+    // that they do not all report under the same neighbor="-1" series.
+    private static void connectionFamily(StringBuilder out, String name, String type, ToDoubleFunction<Connection> value) {
+        header(out, name, type, null);
+        for (PeerMetrics metrics : registered) {
+            for (Connection conn : metrics.connections()) {
+                if (conn.otherPeerId >= 0) {
+                    sample(out, name, labels(metrics, conn), value.applyAsDouble(conn));
+                }
+            }
+        }
+    }
+
+    private static String labels(PeerMetrics metrics, Connection conn) {
+        return "peer=\"" + metrics.peerId() + "\",neighbor=\"" + conn.otherPeerId + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        if (help != null) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        }
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
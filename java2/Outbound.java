@@ -0,0 +1,96 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A frame waiting to be written to a connection. PIECE frames served from a file carry only their
+ * header in memory; the piece bytes follow as a file region sent with {@link FileChannel#transferTo},
+ * so they never enter the heap.
+ */
+public class Outbound {
+    private final ByteBuffer[] buffers;
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+    private long block = -1;
+    private int length;
+    private long written = 0;
+    private volatile boolean cancelled = false;
+
+    public Outbound(ByteBuffer... buffers) {
+        this(null, 0, 0, buffers);
+    }
+
+    public Outbound(FileChannel file, long position, long count, ByteBuffer... buffers) {
+        this.buffers = buffers;
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+    }
+
+    /**
+     * Tags a PIECE frame with the block it carries so that a CANCEL can find it, and with the
+     * payload length that counts against the upload rate limits.
+     */
+    public Outbound forBlock(long block, int length) {
+        this.block = block;
+        this.length = length;
+        return this;
+    }
+
+    public long block() {
+        return block;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long written() {
+        return written;
+    }
+
+    /** Collects the in-memory buffers of a frame without a file region, for coalescing. */
+    public void addBuffersTo(List<ByteBuffer> list) {
+        Collections.addAll(list, buffers);
+    }
+
+    /** Drops the frame if no part of it has been written yet. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** Writes as much as the link accepts and returns whether the whole frame has been written. */
+    public boolean writeTo(Link link) throws IOException {
+        if (cancelled && buffers[0].position() == 0) {
+            return true;
+        }
+        if (buffers[buffers.length - 1].hasRemaining()) {
+            written += link.write(buffers);
+            if (buffers[buffers.length - 1].hasRemaining()) {
+                return false;
+            }
+        }
+        // Hand the socket itself to transferTo so that the file region is still sent with sendfile.
+        WritableByteChannel target = link.socket() != null ? link.socket() : link;
+        while (remaining > 0) {
+            long n = file.transferTo(position, remaining, target);
+            if (n == 0) {
+                return false;
+            }
+            position += n;
+            written += n;
+            remaining -= n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames waiting to be written to one connection. Any thread may add frames; a single writer drains
+ * them. Control messages go ahead of queued PIECE data, and the control messages waiting at a flush
+ * are written together in one gathering write. A frame that has started going out is always
+ * finished before the next one.
+ *
+ * <p>PIECE frames are held back by the upload rate limits and by the peer's upload slots, which cap
+ * how many requested blocks are being sent at once. Control messages are never held back.
+ */
+public class OutboundQueue {
+    private static final int MAX_COALESCED = 64;
+    private static final long SLOT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Queue<Outbound> control = new ConcurrentLinkedQueue<>();
+    private final Queue<Outbound> data = new ConcurrentLinkedQueue<>();
+    private final List<ByteBuffer> coalesced = new ArrayList<>();
+    private final RateLimiter globalLimiter;
+    private final RateLimiter limiter;
+    private final Semaphore uploadSlots;
+    private Outbound current;
+    private boolean holdingSlot = false;
+    private Outbound throttled;
+    private long readyAt;
+    private long delay;
+    private long bytesWritten = 0;
+
+    public OutboundQueue(RateLimiter globalLimiter, RateLimiter limiter, Semaphore uploadSlots) {
+        this.globalLimiter = globalLimiter;
+        this.limiter = limiter;
+        this.uploadSlots = uploadSlots;
+    }
+
+    public void add(Outbound frame) {
+        if (frame.block() >= 0) {
+            data.add(frame);
+        } else {
+            control.add(frame);
+        }
+    }
+
+    /** Marks the queued PIECE frame carrying the given block as cancelled. */
+    public void cancel(long block) {
+        for (Outbound frame : data) {
+            if (frame.block() == block) {
+                frame.cancel();
+            }
+        }
+    }
+
+    public int size() {
+        return control.size() + data.size() + (throttled != null ? 1 : 0);
+    }
+
+    /**
+     * Writes as much as the link accepts and returns whether the queue has been drained. If it
+     * stopped because the next PIECE frame is throttled, {@link #delay()} says when to try again.
+     */
+    public boolean writeTo(Link link) throws IOException {
+        delay = 0;
+        while (true) {
+            if (current != null) {
+                long before = current.written();
+                boolean done = current.writeTo(link);
+                bytesWritten += current.written() - before;
+                if (!done) {
+                    return false;
+                }
+                current = null;
+                releaseSlot();
+            }
+            Outbound frame = control.poll();
+            if (frame != null) {
+                current = coalesce(frame);
+                continue;
+            }
+            if (throttled == null || throttled.isCancelled()) {
+                do {
+                    throttled = data.poll();
+                } while (throttled != null && throttled.isCancelled());
+                if (throttled == null) {
+                    return true;
+                }
+                readyAt = System.nanoTime() + RateLimiter.reserve(globalLimiter, limiter, throttled.length());
+            }
+            long wait = readyAt - System.nanoTime();
+            if (wait > 0 || uploadSlots != null && !uploadSlots.tryAcquire()) {
+                delay = Math.max(wait, SLOT_RETRY_NANOS);
+                return false;
+            }
+            holdingSlot = uploadSlots != null;
+            current = throttled;
+            throttled = null;
+        }
+    }
+
+    /** Nanoseconds until the throttled PIECE frame may go out, or 0 if the channel was full. */
+    public long delay() {
+        return delay;
+    }
+
+    /** Returns the bytes written since the last call; only the writer may call this. */
+    public long takeBytesWritten() {
+        long n = bytesWritten;
+        bytesWritten = 0;
+        return n;
+    }
+
+    /** Gives back the upload slot of a frame that will never finish because the channel closed. */
+    public void discard() {
+        current = null;
+        throttled = null;
+        releaseSlot();
+    }
+
+    private void releaseSlot() {
+        if (holdingSlot) {
+            holdingSlot = false;
+            uploadSlots.release();
+        }
+    }
+
+    private Outbound coalesce(Outbound first) {
+        Outbound next = control.poll();
+        if (next == null) {
+            return first;
+        }
+        first.addBuffersTo(coalesced);
+        for (int i = 1; next != null; next = ++i < MAX_COALESCED ? control.poll() : null) {
+            next.addBuffersTo(coalesced);
+        }
+        Outbound batch = new Outbound(coalesced.toArray(new ByteBuffer[0]));
+        coalesced.clear();
+        return batch;
+    }
+}
@@ -1,25 +1,31 @@
-import java.io.FileInputStream;
+package bittorrent;
+
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class Peer implements Runnable {
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private final ScheduledExecutorService scheduledThreadPool = Executors.newScheduledThreadPool(2);
+    private static final int CONNECT_ATTEMPTS = 50;
+    private static final int CONNECT_RETRY_MILLIS = 100;
+
+    private final ExecutorService threadPool;
+    private final ExecutorService servicePool = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduledThreadPool;
 
     public final int peerId;
     public final String hostname;
@@ -27,17 +33,45 @@ public class Peer implements Runnable {
     public final int hasFile;
     public final String filename;
     public final int pieceSize;
+    public final long fileSize;
     public final int numPieces;
-    public final BitSet bitarray;
-    public final Map<Integer, byte[]> pieces = new ConcurrentHashMap<>();
+    public final int maxMessageLength;
+    public final AtomicBitfield bitarray;
+    public final int blockSize;
+    public final int maxOutstandingRequests;
+    public final PieceAssembler assembler;
+    public final PiecePicker picker;
+    public final Metainfo metainfo;
+    public final DiskWriter diskWriter;
+    private final boolean verifyInline;
+    public final PieceStore pieces;
     public final List<Connection> connections = new CopyOnWriteArrayList<>();
+    public final AtomicInteger incompleteNeighbors = new AtomicInteger();
+    public final RateLimiter uploadLimiter;
+    public final RateLimiter downloadLimiter;
+    public final int connectionUploadRate;
+    public final int connectionDownloadRate;
+    public final Semaphore uploadSlots;
+    public final PeerMetrics metrics;
+    public final EventLog log;
+    public final MessageTrace trace;
 
     private final List<Peer> peers = new ArrayList<>();
     private final int numPrefNeighbors;
     private final int optimisticUnchokingInterval;
     private final int unchokingInterval;
+    private final int resumeInterval;
+    private final int metricsPort;
+    private final String directory;
+    private final ResumeFile resumeFile;
+    private final Transport transport;
+    private final EventLoop[] eventLoops;
+
+    private final Choker choker;
 
-    private int optimisticallyUnchokedId;
+    private volatile int optimisticallyUnchokedId = -1;
+    private volatile List<Connection> preferred = List.of();
+    private int nextEventLoop = 0;
 
     public Peer(int peerId, String hostname, int port, int hasFile, Config config, List<Peer> peers) {
         this.peerId = peerId;
@@ -46,59 +80,278 @@ public class Peer implements Runnable {
         this.hasFile = hasFile;
         this.peers.addAll(peers);
 
+        // Selector loops and the disk writer stay on platform threads; selecting and file I/O
+        // would pin a virtual thread's carrier anyway.
+        boolean virtual = Threads.useVirtualThreads(config);
+        threadPool = Threads.newExecutor(virtual);
+        scheduledThreadPool = Executors.newScheduledThreadPool(3, Threads.factory(virtual));
+
         numPrefNeighbors = config.getInt("NumberOfPreferredNeighbors");
+        choker = new Choker(Math.max(1, numPrefNeighbors - 1));
         optimisticUnchokingInterval = config.getInt("OptimisticUnchokingInterval");
         unchokingInterval = config.getInt("UnchokingInterval");
         pieceSize = config.getInt("PieceSize");
         filename = config.getString("FileName");
 
-        int fileSize = config.getInt("FileSize");
-        numPieces = fileSize / pieceSize + (fileSize % pieceSize == 0? 0 : 1);
-        bitarray = new BitSet(numPieces);
-        bitarray.clear();
+        fileSize = config.getLong("FileSize");
+        numPieces = (int) (fileSize / pieceSize + (fileSize % pieceSize == 0? 0 : 1));
+        maxMessageLength = 32 + Math.max(pieceSize, (numPieces + 7) / 8);
+        bitarray = new AtomicBitfield(numPieces);
+        blockSize = config.getInt("BlockSize", 16384);
+        maxOutstandingRequests = config.getInt("MaxOutstandingRequests", 1);
+
+        // Rates are in bytes per second of PIECE payload; 0 means unlimited.
+        uploadLimiter = new RateLimiter(config.getInt("MaxUploadRate", 0));
+        downloadLimiter = new RateLimiter(config.getInt("MaxDownloadRate", 0));
+        connectionUploadRate = config.getInt("MaxConnectionUploadRate", 0);
+        connectionDownloadRate = config.getInt("MaxConnectionDownloadRate", 0);
+        int maxConcurrentUploads = config.getInt("MaxConcurrentUploads", 0);
+        uploadSlots = maxConcurrentUploads > 0 ? new Semaphore(maxConcurrentUploads) : null;
+
+        transport = Transport.forName(config.getString("Transport", "blocking"), config);
+        eventLoops = new EventLoop[transport.selectable() ? config.getInt("EventLoopThreads", 1) : 0];
+
+        // Logs and downloaded copies go under PeerDirectory, the seeder's file stays at FileName.
+        directory = config.getString("PeerDirectory", ".");
+        log = new EventLog(peerId, String.format("%s/log_peer_%s.log", directory, peerId), EventLog.level(config),
+                config.getInt("LogBufferSize", 65536));
+        try {
+            trace = config.getBoolean("Trace", false)
+                    ? new MessageTrace(String.format("%s/trace_peer_%s.bin", directory, peerId), this,
+                            config.getInt("TraceBufferSize", 1 << 22))
+                    : new MessageTrace();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        metrics = new PeerMetrics(this);
+        metricsPort = config.getInt("MetricsPort", 0);
+
+        assembler = new PieceAssembler(this);
+        picker = new PiecePicker(numPieces);
 
+        try {
+            pieces = openPieceStore(config.getString("PieceStore", "heap"), config.getBoolean("Preallocate", true));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         if (hasFile == 1) {
-            readFile();
-            bitarray.set(0, numPieces, true);
+            bitarray.setAll();
+        }
+        metainfo = loadMetainfo(config);
+        verifyInline = config.getBoolean("VerifyInline", false);
+        diskWriter = new DiskWriter(this, config.getInt("DiskQueueSize", 256),
+                config.getString("FsyncPolicy", "none").equals("batch"));
+
+        resumeInterval = config.getInt("ResumeInterval", 10);
+        resumeFile = hasFile == 1 ? null : new ResumeFile(downloadPath() + ".resume");
+        if (resumeFile != null) {
+            resume(config.getBoolean("ResumeVerify", false));
+        }
+    }
+
+    // Restores the pieces completed before a restart, either from the resume file or, if asked to,
+    // by hashing whatever is already in the output file.
+    private void resume(boolean verify) {
+        BitSet recovered = null;
+        if (verify && metainfo != null) {
+            try {
+                recovered = metainfo.verifyAll(pieces);
+            } catch (IOException e) {
+                System.err.println(e.toString());
+            }
+        } else {
+            recovered = resumeFile.load(numPieces);
+        }
+        if (recovered != null && !recovered.isEmpty()) {
+            bitarray.or(recovered);
+            log.resumed(recovered.cardinality());
+        }
+    }
+
+    private void saveResumeFile() {
+        try {
+            resumeFile.save(bitarray.toBitSet(), numPieces);
+        } catch (IOException e) {
+            System.err.println(e.toString());
         }
     }
 
-    private void readFile() {
+    // A metainfo file left over from another FileSize or PieceSize, or older than the seeder's
+    // file, would fail every piece; the seeder hashes its file again and a leecher ignores it.
+    private Metainfo loadMetainfo(Config config) {
+        String path = config.getString("MetainfoFile", filename + ".meta");
         try {
-            final FileInputStream fileInputStream = new FileInputStream(filename);
-            for (int i = 0; i < numPieces; i++) {
-                byte[] piece = new byte[pieceSize];
-                fileInputStream.read(piece);
-                pieces.put(i, piece);
+            File file = new File(path);
+            if (file.exists()) {
+                Metainfo read = Metainfo.read(path);
+                if (read.matches(fileSize, pieceSize)
+                        && (hasFile == 0 || new File(filename).lastModified() <= file.lastModified())) {
+                    return read;
+                }
+                System.err.printf("Peer %s found a stale metainfo file %s%n", peerId, path);
             }
+            if (hasFile == 1) {
+                Metainfo generated = Metainfo.generate(
+                        filename, fileSize, pieceSize, config.getString("HashAlgorithm", "SHA-256"));
+                generated.write(path);
+                return generated;
+            }
+            System.err.printf("Peer %s has no usable metainfo file %s, pieces will not be verified%n", peerId, path);
         } catch (IOException e) {
             System.err.println(e.toString());
         }
+        return null;
+    }
+
+    private String downloadPath() {
+        return String.format("%s/peer_%s/%s", directory, peerId, new File(filename).getName());
+    }
+
+    private PieceStore openPieceStore(String type, boolean preallocate) throws IOException {
+        String path = hasFile == 1 ? filename : downloadPath();
+        if (type.equals("mmap")) {
+            return new MappedPieceStore(path, fileSize, pieceSize, hasFile == 1, preallocate);
+        }
+        return new HeapPieceStore(path, fileSize, pieceSize, hasFile == 1, preallocate);
     }
 
     public void run() {
         try {
+            metrics.register();
+            MetricsServer.register(metrics, metricsPort);
+            scheduledThreadPool.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+            servicePool.execute(log);
+            if (trace.enabled()) {
+                servicePool.execute(trace);
+            }
+            servicePool.execute(diskWriter);
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop();
+                servicePool.execute(eventLoops[i]);
+            }
             scheduledThreadPool.scheduleAtFixedRate(
                     this::optimisticUnchoke, 0, optimisticUnchokingInterval, TimeUnit.SECONDS);
             scheduledThreadPool.scheduleAtFixedRate(
                     this::unchoke, 0, unchokingInterval, TimeUnit.SECONDS);
+            if (resumeFile != null && resumeInterval > 0) {
+                scheduledThreadPool.scheduleAtFixedRate(
+                        this::saveResumeFile, resumeInterval, resumeInterval, TimeUnit.SECONDS);
+            }
+            Transport.Listener listener = transport.listen(hostname, port);
             for (Peer peer : peers) {
-                Connection conn = new Connection(true, new Socket(peer.hostname, peer.port), this);
-                connections.add(conn);
-                threadPool.execute(conn);
-                System.out.printf("Peer %s connected to Peer %s%n", peerId, peer.peerId);
+                start(connect(peer));
+                log.connected(peer.peerId);
             }
-            ServerSocket serverSocket = new ServerSocket(port);
             while (true) {
-                Connection conn = new Connection(false, serverSocket.accept(), this);
-                connections.add(conn);
-                threadPool.execute(conn);
+                start(listener.accept());
             }
         } catch (IOException e) {
             System.err.println(e.toString());
         }
     }
 
+    // Peers start concurrently, so a neighbor may not be listening yet when we dial it.
+    private Link connect(Peer peer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transport.connect(peer.hostname, peer.port);
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void start(Link link) {
+        Connection conn = new Connection(link, this);
+        connections.add(conn);
+        if (link.isBlocking()) {
+            threadPool.execute(conn);
+            threadPool.execute(conn::writeLoop);
+        } else {
+            eventLoops[nextEventLoop].register(conn, link.socket());
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        }
+    }
+
+    /** Called by the disk writer once a received block is in the piece store. */
+    public void blockWritten(BlockWrite write) {
+        if (assembler.received(write.block(blockSize))) {
+            pieceDownloaded(write.index);
+        }
+        // In endgame a finished block frees a request slot on a connection that may have nothing
+        // left to receive, so duplicates of the remaining blocks are asked for right away.
+        if (assembler.inEndgame()) {
+            requestPieces();
+        }
+    }
+
+    /** Lets every connection refill its request window, e.g. after the disk queue drains. */
+    public void requestPieces() {
+        for (Connection conn : connections) {
+            try {
+                conn.requestPieces();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    /** Runs a task after a delay, e.g. when a connection is waiting for rate limit tokens. */
+    public void schedule(Runnable task, long delayNanos) {
+        scheduledThreadPool.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called once every block of a piece is in the store; hashes it off the connection thread, or
+     * right away with VerifyInline, so that a peer driven from one thread stays deterministic.
+     */
+    private void pieceDownloaded(int index) {
+        if (metainfo == null) {
+            pieceVerified(index);
+            return;
+        }
+        Executor executor = verifyInline ? Runnable::run : ForkJoinPool.commonPool();
+        executor.execute(() -> {
+            boolean valid;
+            try {
+                valid = metainfo.verify(index, pieces.read(index));
+            } catch (RuntimeException e) {
+                // The piece is downloaded again rather than left claimed forever.
+                System.err.println(e.toString());
+                valid = false;
+            }
+            if (valid) {
+                pieceVerified(index);
+            } else {
+                log.pieceDiscarded(index);
+                assembler.failed(index);
+            }
+        });
+    }
+
+    private void pieceVerified(int index) {
+        assembler.verified(index);
+        metrics.pieceCompleted();
+        log.pieceCompleted(index, bitarray.cardinality());
+        byte[] have = Message.have(index);
+        for (Connection conn : connections) {
+            try {
+                conn.pieceCompleted(index);
+                conn.send(have);
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
     private void optimisticUnchoke() {
         List<Integer> chokedButInterestedIds = connections.stream()
                 .filter(conn -> conn.interested && conn.choked).map(conn -> conn.otherPeerId)
@@ -106,76 +359,48 @@ public class Peer implements Runnable {
         if (!chokedButInterestedIds.isEmpty()) {
             int randInt = ThreadLocalRandom.current().nextInt(0, chokedButInterestedIds.size());
             int randId = chokedButInterestedIds.get(randInt);
-            if (randId != optimisticallyUnchokedId) {
-                for (Connection conn : connections) {
-                    sendChokeAndUnchoke(conn, List.of(optimisticallyUnchokedId), List.of(randId));
+            int previousId = optimisticallyUnchokedId;
+            optimisticallyUnchokedId = randId;
+            for (Connection conn : connections) {
+                if (conn.otherPeerId == randId) {
+                    setChoked(conn, false);
+                } else if (conn.otherPeerId == previousId && !preferred.contains(conn)) {
+                    setChoked(conn, true);
                 }
             }
-            optimisticallyUnchokedId = randId;
         }
     }
 
     private void unchoke() {
-        List<Integer> unchokedNeighborIds = connections.stream()
-                .filter(conn -> !conn.choked).map(conn -> conn.otherPeerId)
-                .collect(Collectors.toList());
-        List<Integer> interestedNeighborIds = connections.stream()
-                .filter(conn -> conn.interested).map(conn -> conn.otherPeerId)
-                .collect(Collectors.toList());
-        List<Connection> usefulConnections = connections.stream()
-                .filter(conn -> conn.piecesReceived > 0)
-                .collect(Collectors.toList());
-        List<Integer> toChoke = new ArrayList<>();
-        List<Integer> toUnchoke = new ArrayList<>();
-        if (hasFile == 1 && unchokedNeighborIds.size() < numPrefNeighbors - 1
-                && interestedNeighborIds.size() >= numPrefNeighbors - 1) {
-            Collections.shuffle(interestedNeighborIds);
-            toUnchoke.addAll(interestedNeighborIds.subList(0, numPrefNeighbors - 1));
-        } else if (usefulConnections.size() >= numPrefNeighbors - 1) {
-            connections.sort(Comparator.comparingInt(conn -> conn.piecesReceived));
-            List<Integer> topIds = connections.subList(0, numPrefNeighbors - 1).stream()
-                    .map(conn -> conn.otherPeerId).collect(Collectors.toList());
-            toChoke.addAll(difference(unchokedNeighborIds, topIds));
-            toUnchoke.addAll(difference(topIds, unchokedNeighborIds));
-        }
-        for (Connection conn : connections) {
-            conn.piecesReceived = 0;
-            sendChokeAndUnchoke(conn, toChoke, toUnchoke);
+        List<Connection> snapshot = new ArrayList<>(connections);
+        preferred = choker.select(snapshot, unchokingInterval, !missingPieces());
+        for (Connection conn : snapshot) {
+            setChoked(conn, !preferred.contains(conn) && conn.otherPeerId != optimisticallyUnchokedId);
         }
     }
 
-    private void sendChokeAndUnchoke(Connection conn, List<Integer> toChoke, List<Integer> toUnchoke) {
+    private void setChoked(Connection conn, boolean choked) {
+        if (conn.choked == choked) {
+            return;
+        }
         try {
-            if (toChoke.contains(conn.otherPeerId)) {
-                conn.send(Message.choke());
-                conn.choked = true;
-            } else if (toUnchoke.contains(conn.otherPeerId)) {
-                conn.send(Message.unchoke());
-                conn.choked = false;
-            }
+            conn.send(choked ? Message.choke() : Message.unchoke());
+            conn.choked = choked;
+            conn.chokingTime.set(choked);
         } catch (IOException e) {
             System.err.println(e);
         }
     }
 
-    private List<Integer> difference(List<Integer> a, List<Integer> b) {
-        List<Integer> diff = new ArrayList<>(a);
-        diff.removeAll(b);
-        return diff;
+    public int pieceLength(int index) {
+        return (int) Math.min(pieceSize, fileSize - (long) index * pieceSize);
     }
 
     public boolean missingPieces() {
-        synchronized (bitarray) {
-            return bitarray.cardinality() < numPieces;
-        }
+        return !bitarray.isComplete();
     }
 
     public boolean neighborsMissingPieces() {
-        for (Connection conn : connections) {
-            if (conn.otherBitarray.cardinality() < numPieces) {
-                return true;
-            }
-        }
-        return false;
+        return incompleteNeighbors.get() > 0;
     }
 }
@@ -0,0 +1,113 @@
+package bittorrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of one peer, registered as the MBean {@code BitTorrent:type=Peer,id=<id>}.
+ * Connections record into these alongside their own counters, so the totals survive connections
+ * that have closed.
+ */
+public class PeerMetrics implements PeerMetricsMBean {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final Histogram requestLatency = new Histogram();
+    public final Histogram chokedPeriods = new Histogram();
+
+    private final Peer peer;
+    private final TransferRate pieceRate = new TransferRate();
+
+    public PeerMetrics(Peer peer) {
+        this.peer = peer;
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    this, new ObjectName("BitTorrent:type=Peer,id=" + peer.peerId));
+        } catch (JMException e) {
+            System.err.println(e.toString());
+        }
+    }
+
+    public void pieceCompleted() {
+        pieceRate.add(1);
+    }
+
+    /** Updates the moving average of the piece rate; called once a second. */
+    public void tick() {
+        pieceRate.update(1, 0.2);
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getPiecesCompleted() {
+        return pieceRate.total();
+    }
+
+    public double getPiecesPerSecond() {
+        return pieceRate.rate();
+    }
+
+    public long getRequestsCompleted() {
+        return requestLatency.count();
+    }
+
+    public double getRequestLatencyMeanMillis() {
+        return requestLatency.mean() / NANOS_PER_MILLI;
+    }
+
+    public double getRequestLatencyP50Millis() {
+        return requestLatency.percentile(0.5) / NANOS_PER_MILLI;
+    }
+
+    public double getRequestLatencyP99Millis() {
+        return requestLatency.percentile(0.99) / NANOS_PER_MILLI;
+    }
+
+    public double getRequestLatencyMaxMillis() {
+        return requestLatency.max() / NANOS_PER_MILLI;
+    }
+
+    public double getChokedPeriodP50Millis() {
+        return chokedPeriods.percentile(0.5) / NANOS_PER_MILLI;
+    }
+
+    public double getChokedPeriodMaxMillis() {
+        return chokedPeriods.max() / NANOS_PER_MILLI;
+    }
+
+    public int getConnections() {
+        return peer.connections.size();
+    }
+
+    public int getOutstandingRequests() {
+        int outstanding = 0;
+        for (Connection conn : peer.connections) {
+            outstanding += conn.outstandingRequests();
+        }
+        return outstanding;
+    }
+
+    public int getDiskQueueDepth() {
+        return peer.diskWriter.depth();
+    }
+
+    public int peerId() {
+        return peer.peerId;
+    }
+
+    public Iterable<Connection> connections() {
+        return peer.connections;
+    }
+}
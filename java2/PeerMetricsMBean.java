@@ -0,0 +1,32 @@
+package bittorrent;
+
+/** JMX view of a peer's {@link PeerMetrics}. Times are in milliseconds unless named otherwise. */
+public interface PeerMetricsMBean {
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getPiecesCompleted();
+
+    double getPiecesPerSecond();
+
+    long getRequestsCompleted();
+
+    double getRequestLatencyMeanMillis();
+
+    double getRequestLatencyP50Millis();
+
+    double getRequestLatencyP99Millis();
+
+    double getRequestLatencyMaxMillis();
+
+    double getChokedPeriodP50Millis();
+
+    double getChokedPeriodMaxMillis();
+
+    int getConnections();
+
+    int getOutstandingRequests();
+
+    int getDiskQueueDepth();
+}
@@ -0,0 +1,260 @@
+package bittorrent;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the blocks of missing pieces to connections and assembles pieces from blocks that may
+ * arrive from different neighbors. A piece only counts as downloaded once all of its blocks are in.
+ * Blocks are identified by {@code (long) index << 32 | block}. State is guarded by a
+ * {@link ReentrantLock} rather than a monitor so waiting virtual threads do not pin their carrier.
+ */
+public class PieceAssembler {
+    private final Peer peer;
+    private final AtomicBitfield started;
+    private final Map<Integer, PartialPiece> partialPieces = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean endgameStarted = false;
+
+    public PieceAssembler(Peer peer) {
+        this.peer = peer;
+        started = new AtomicBitfield(peer.numPieces);
+    }
+
+    public static long block(int index, int block) {
+        return (long) index << 32 | block;
+    }
+
+    public static int indexOf(long block) {
+        return (int) (block >>> 32);
+    }
+
+    public static int blockOf(long block) {
+        return (int) block;
+    }
+
+    public int blockCount(int index) {
+        return (peer.pieceLength(index) + peer.blockSize - 1) / peer.blockSize;
+    }
+
+    public int blockLength(int index, int block) {
+        return Math.min(peer.blockSize, peer.pieceLength(index) - block * peer.blockSize);
+    }
+
+    /**
+     * Claims an unrequested block of a piece the neighbor has and we lack, preferring pieces that
+     * are already partly downloaded and otherwise the rarest piece. Returns -1 if there is none.
+     */
+    public long claimBlock(AtomicBitfield available) {
+        lock.lock();
+        try {
+            for (Map.Entry<Integer, PartialPiece> entry : partialPieces.entrySet()) {
+                if (available.get(entry.getKey())) {
+                    int block = entry.getValue().claim();
+                    if (block >= 0) {
+                        return block(entry.getKey(), block);
+                    }
+                }
+            }
+            int index = peer.picker.pick(available, peer.bitarray, started);
+            if (index < 0) {
+                return -1;
+            }
+            PartialPiece partialPiece = new PartialPiece(blockCount(index));
+            partialPieces.put(index, partialPiece);
+            started.set(index);
+            return block(index, partialPiece.claim());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * In endgame, when every missing block has already been requested, claims a block that is
+     * still in flight on another connection so the last pieces are fetched from several neighbors.
+     * Returns -1 outside endgame or if there is no such block.
+     */
+    public long claimDuplicate(AtomicBitfield available, RequestTable outstanding) {
+        lock.lock();
+        try {
+            if (!endgame()) {
+                return -1;
+            }
+            for (Map.Entry<Integer, PartialPiece> entry : partialPieces.entrySet()) {
+                if (!available.get(entry.getKey())) {
+                    continue;
+                }
+                PartialPiece partialPiece = entry.getValue();
+                for (int b = partialPiece.received.nextClearBit(0); b < partialPiece.blockCount;
+                        b = partialPiece.received.nextClearBit(b + 1)) {
+                    if (!outstanding.contains(block(entry.getKey(), b))) {
+                        partialPiece.claims[b]++;
+                        return block(entry.getKey(), b);
+                    }
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean inEndgame() {
+        lock.lock();
+        try {
+            return endgame();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true for the one caller that first finds every missing block requested, so that the
+     * other connections can be asked for duplicates; they would otherwise only ask once they
+     * next receive a message.
+     */
+    public boolean startEndgame() {
+        lock.lock();
+        try {
+            if (!endgame()) {
+                endgameStarted = false;
+                return false;
+            }
+            if (endgameStarted) {
+                return false;
+            }
+            endgameStarted = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean endgame() {
+        if (peer.bitarray.cardinality() + partialPieces.size() < peer.numPieces) {
+            return false;
+        }
+        for (PartialPiece partialPiece : partialPieces.values()) {
+            if (partialPiece.requested.cardinality() < partialPiece.blockCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isReceived(long block) {
+        lock.lock();
+        try {
+            PartialPiece partialPiece = partialPieces.get(indexOf(block));
+            return partialPiece == null || partialPiece.received.get(blockOf(block));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends one connection's claim on a block. Once no connection has it requested any more, a block
+     * that has not arrived is available to other connections again; in endgame a block may be
+     * requested on several connections at once.
+     */
+    public void release(long block) {
+        lock.lock();
+        try {
+            PartialPiece partialPiece = partialPieces.get(indexOf(block));
+            int b = blockOf(block);
+            if (partialPiece != null && partialPiece.claims[b] > 0 && --partialPiece.claims[b] == 0
+                    && !partialPiece.received.get(b)) {
+                partialPiece.requested.clear(b);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Claims a given block, as when replaying the requests a recorded peer sent. */
+    public void claim(long block) {
+        lock.lock();
+        try {
+            int index = indexOf(block);
+            if (peer.bitarray.get(index)) {
+                return;
+            }
+            PartialPiece partialPiece = partialPieces.get(index);
+            if (partialPiece == null) {
+                partialPiece = new PartialPiece(blockCount(index));
+                partialPieces.put(index, partialPiece);
+                started.set(index);
+            }
+            partialPiece.requested.set(blockOf(block));
+            partialPiece.claims[blockOf(block)]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records a received block and returns true if it was the last missing block of its piece. */
+    public boolean received(long block) {
+        lock.lock();
+        try {
+            int index = indexOf(block);
+            PartialPiece partialPiece = partialPieces.get(index);
+            if (partialPiece == null || partialPiece.received.get(blockOf(block))) {
+                return false;
+            }
+            partialPiece.received.set(blockOf(block));
+            partialPiece.requested.set(blockOf(block));
+            return partialPiece.received.cardinality() == partialPiece.blockCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Marks a piece whose blocks have all arrived and whose hash matched as downloaded. */
+    public void verified(int index) {
+        lock.lock();
+        try {
+            partialPieces.remove(index);
+            started.clear(index);
+            peer.bitarray.set(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Discards the blocks of a piece that failed verification so that it is downloaded again. */
+    public void failed(int index) {
+        lock.lock();
+        try {
+            partialPieces.put(index, new PartialPiece(blockCount(index)));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class PartialPiece {
+        final int blockCount;
+        final BitSet requested;
+        final BitSet received;
+        // Connections that have each block requested.
+        final int[] claims;
+
+        PartialPiece(int blockCount) {
+            this.blockCount = blockCount;
+            requested = new BitSet(blockCount);
+            received = new BitSet(blockCount);
+            claims = new int[blockCount];
+        }
+
+        int claim() {
+            int block = requested.nextClearBit(0);
+            if (block >= blockCount) {
+                return -1;
+            }
+            requested.set(block);
+            claims[block]++;
+            return block;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package bittorrent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Rarest-first piece selection. Counts how many connected neighbors have each piece, updated as
+ * BITFIELD and HAVE messages arrive and as connections close.
+ */
+public class PiecePicker {
+    private final AtomicIntegerArray availability;
+
+    public PiecePicker(int numPieces) {
+        availability = new AtomicIntegerArray(numPieces);
+    }
+
+    public void have(int index) {
+        availability.incrementAndGet(index);
+    }
+
+    public void addBitfield(AtomicBitfield bitarray) {
+        for (int i = bitarray.nextSetBit(0); i >= 0; i = bitarray.nextSetBit(i + 1)) {
+            availability.incrementAndGet(i);
+        }
+    }
+
+    public void removeBitfield(AtomicBitfield bitarray) {
+        for (int i = bitarray.nextSetBit(0); i >= 0; i = bitarray.nextSetBit(i + 1)) {
+            availability.decrementAndGet(i);
+        }
+    }
+
+    public int availability(int index) {
+        return availability.get(index);
+    }
+
+    /**
+     * Returns the piece the neighbor has that is neither complete nor started here and is held by the
+     * fewest neighbors, breaking ties at random, or -1 if there is none.
+     */
+    public int pick(AtomicBitfield available, AtomicBitfield complete, AtomicBitfield started) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int best = -1;
+        int rarest = Integer.MAX_VALUE;
+        int ties = 0;
+        for (int w = 0; w < available.wordCount(); w++) {
+            long candidates = available.word(w) & ~complete.word(w) & ~started.word(w);
+            while (candidates != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(candidates);
+                candidates &= candidates - 1;
+                int count = availability.get(i);
+                if (count < rarest) {
+                    best = i;
+                    rarest = count;
+                    ties = 1;
+                } else if (count == rarest && random.nextInt(++ties) == 0) {
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+}
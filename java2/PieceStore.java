@@ -0,0 +1,51 @@
+package bittorrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Where a peer keeps the pieces of the shared file. Reads return an independent view, so several
+ * connections can upload the same piece concurrently.
+ */
+public interface PieceStore extends Closeable {
+    ByteBuffer read(int index);
+
+    /** Reads a block of a piece as a view positioned at its first byte. */
+    default ByteBuffer read(int index, int begin, int length) {
+        return read(index).slice(begin, length);
+    }
+
+    /** Writes a block of a piece, starting {@code begin} bytes into the piece. */
+    void write(int index, int begin, ByteBuffer src, int offset, int length) throws IOException;
+
+    /** Writes blocks that are adjacent in the file, in file order. */
+    default void write(List<BlockWrite> run) throws IOException {
+        for (BlockWrite write : run) {
+            write(write.index, write.begin, write.data, write.data.position(), write.length);
+        }
+    }
+
+    /** Forces written pieces to the storage device. */
+    void sync() throws IOException;
+
+    /** Channel of the file holding the pieces, for zero-copy uploads, or null if there is none. */
+    FileChannel fileChannel();
+
+    /**
+     * Grows a file to its full size by writing zeros, so that blocks arriving in random order do not
+     * fragment it or repeatedly extend it. Anything already in the file is kept, except what lies
+     * beyond the size, such as the tail of a larger file downloaded earlier under the same name.
+     */
+    static void preallocate(FileChannel channel, long size) throws IOException {
+        channel.truncate(size);
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1 << 20);
+        long position = channel.size();
+        while (position < size) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+            position += channel.write(zeros, position);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package bittorrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket for PIECE payload bytes, kept as the time at which the bucket will be empty again
+ * (the generic cell rate algorithm) so that taking tokens for a whole block is a single CAS. A rate
+ * of zero or less means unlimited.
+ */
+public class RateLimiter {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final double nanosPerByte;
+    private final AtomicLong emptyAt = new AtomicLong(System.nanoTime());
+
+    public RateLimiter(long bytesPerSecond) {
+        nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+    }
+
+    public boolean isLimited() {
+        return nanosPerByte > 0;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes and returns how many nanoseconds to wait before
+     * sending or receiving them. Tokens may be borrowed, so callers never retry.
+     */
+    public long reserve(long bytes) {
+        if (nanosPerByte == 0) {
+            return 0;
+        }
+        long cost = (long) (bytes * nanosPerByte);
+        while (true) {
+            long now = System.nanoTime();
+            long previous = emptyAt.get();
+            long start = previous - now > 0 ? previous : now;
+            if (emptyAt.compareAndSet(previous, start + cost)) {
+                return Math.max(0, start - now - BURST_NANOS);
+            }
+        }
+    }
+
+    /** Reserves on both limiters and returns the longer wait. */
+    public static long reserve(RateLimiter global, RateLimiter local, long bytes) {
+        return Math.max(global.reserve(bytes), local.reserve(bytes));
+    }
+}
@@ -0,0 +1,73 @@
+package bittorrent;
+
+import java.util.Arrays;
+
+/**
+ * Blocks requested from one neighbor and when each REQUEST was queued, kept in two parallel arrays
+ * so that tracking a request allocates nothing. A connection has only a few requests in flight,
+ * so a linear scan finds a block without hashing or boxing it.
+ */
+public class RequestTable {
+    /** Returned by {@link #remove} for a block that is not in the table. */
+    public static final long NOT_REQUESTED = Long.MIN_VALUE;
+
+    private long[] blocks;
+    private long[] times;
+    private volatile int size = 0;
+
+    public RequestTable(int capacity) {
+        blocks = new long[Math.max(capacity, 1)];
+        times = new long[blocks.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Adds a block requested at {@code time}. Grows past the initial capacity if it has to. */
+    public synchronized void add(long block, long time) {
+        if (size == blocks.length) {
+            blocks = Arrays.copyOf(blocks, 2 * size);
+            times = Arrays.copyOf(times, 2 * size);
+        }
+        blocks[size] = block;
+        times[size] = time;
+        size++;
+    }
+
+    public synchronized boolean contains(long block) {
+        return indexOf(block) >= 0;
+    }
+
+    /** Removes a block and returns when it was requested, or {@link #NOT_REQUESTED}. */
+    public synchronized long remove(long block) {
+        int i = indexOf(block);
+        if (i < 0) {
+            return NOT_REQUESTED;
+        }
+        long time = times[i];
+        int last = size - 1;
+        blocks[i] = blocks[last];
+        times[i] = times[last];
+        size = last;
+        return time;
+    }
+
+    /** Removes and returns any block in the table, or -1 if it is empty. */
+    public synchronized long removeAny() {
+        if (size == 0) {
+            return -1;
+        }
+        size--;
+        return blocks[size];
+    }
+
+    private int indexOf(long block) {
+        for (int i = 0; i < size; i++) {
+            if (blocks[i] == block) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,53 @@
+package bittorrent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * Sidecar file next to a partial download recording which pieces are complete, so that a restarted
+ * peer can pick up where it left off. It is rewritten through a temporary file so a crash mid-save
+ * leaves the previous state intact.
+ */
+public class ResumeFile {
+    private final File file;
+
+    public ResumeFile(String path) {
+        file = new File(path);
+    }
+
+    /** Returns the saved bitfield, or null if there is none or it was saved for a different file. */
+    public BitSet load(int numPieces) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != numPieces) {
+                return null;
+            }
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return BitSet.valueOf(bytes);
+        } catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
+        }
+    }
+
+    public void save(BitSet bitarray, int numPieces) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            byte[] bytes = bitarray.toByteArray();
+            out.writeInt(numPieces);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
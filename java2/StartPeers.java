@@ -1,17 +1,17 @@
+package bittorrent;
+
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class StartPeers {
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
-
     public static void main(String[] args) {
         Config config = new Config("Common.cfg");
+        ExecutorService executor = Threads.newExecutor(Threads.useVirtualThreads(config));
         List<Peer> peers = new ArrayList<>();
         try {
             BufferedReader reader = new BufferedReader(new FileReader("PeerInfo.txt"));
@@ -0,0 +1,178 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole swarm in this JVM, on loopback ports or over in-memory links with
+ * {@code Transport=memory}, and reports how long it took. Arguments are
+ * {@code Key=Value} pairs: the harness's own keys below, and any Common.cfg key (Transport,
+ * PieceStore, ThreadMode, ...) which is passed on to every peer.
+ * <ul>
+ * <li>{@code Peers}, {@code Seeders}: swarm size and how many peers start with the file,
+ * <li>{@code FileSize}, {@code PieceSize}: the synthetic file,
+ * <li>{@code Neighbors}: how many earlier peers each peer dials, chosen at random,
+ * <li>{@code BasePort}, {@code Directory}, {@code Seed}, {@code Timeout} (seconds),
+ * <li>{@code Verify}: compare every downloaded copy with the original at the end.
+ * </ul>
+ * For example {@code java bittorrent.SwarmBenchmark Peers=32 Seeders=1 FileSize=67108864 Transport=nio}.
+ * Swarms of a thousand peers and more need {@code Transport=memory ThreadMode=virtual} and a
+ * small file, e.g. {@code Peers=1000 FileSize=1048576 PieceSize=65536 LinkLatencyMillis=1-20}.
+ */
+public class SwarmBenchmark {
+    private static final long POLL_MILLIS = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("NumberOfPreferredNeighbors", "3");
+        settings.put("UnchokingInterval", "1");
+        settings.put("OptimisticUnchokingInterval", "2");
+        settings.put("FileSize", "16777216");
+        settings.put("PieceSize", "262144");
+        settings.put("LogLevel", "off");
+        settings.put("ResumeInterval", "0");
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            settings.put(pair[0], pair[1]);
+        }
+        int numPeers = Integer.parseInt(take(settings, "Peers", "4"));
+        int seeders = Integer.parseInt(take(settings, "Seeders", "1"));
+        int neighbors = Integer.parseInt(take(settings, "Neighbors", "8"));
+        int basePort = Integer.parseInt(take(settings, "BasePort", "6000"));
+        int timeout = Integer.parseInt(take(settings, "Timeout", "600"));
+        long seed = Long.parseLong(take(settings, "Seed", "42"));
+        boolean verify = Boolean.parseBoolean(take(settings, "Verify", "false"));
+        Path directory = Path.of(take(settings, "Directory", "swarm-" + System.currentTimeMillis()));
+        Files.createDirectories(directory);
+        Path file = directory.resolve("data.bin").toAbsolutePath();
+        long fileSize = Long.parseLong(settings.get("FileSize"));
+        generate(file, fileSize, seed);
+        settings.put("FileName", file.toString());
+        settings.put("PeerDirectory", directory.toAbsolutePath().toString());
+        Path cfg = directory.resolve("Common.cfg");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(cfg))) {
+            settings.forEach((key, value) -> out.println(key + "=" + value));
+        }
+
+        Config config = new Config(cfg.toString());
+        ExecutorService executor = Threads.newExecutor(Threads.useVirtualThreads(config));
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        Random random = new Random(seed);
+        List<Peer> peers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < numPeers; i++) {
+            List<Peer> dial = new ArrayList<>(peers);
+            Collections.shuffle(dial, random);
+            Peer peer = new Peer(1001 + i, "localhost", basePort + i, i < seeders ? 1 : 0, config,
+                    dial.subList(0, Math.min(neighbors, dial.size())));
+            peers.add(peer);
+            executor.execute(peer);
+        }
+
+        long[] completed = new long[numPeers];
+        Arrays.fill(completed, -1);
+        int remaining = numPeers - seeders;
+        long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+        while (remaining > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+            for (int i = seeders; i < numPeers; i++) {
+                if (completed[i] < 0 && peers.get(i).bitarray.isComplete()) {
+                    completed[i] = System.nanoTime() - start;
+                    remaining--;
+                }
+            }
+        }
+        for (Peer peer : peers) {
+            peer.trace.flush();
+        }
+        report(settings, peers, seeders, completed, remaining, System.nanoTime() - start, fileSize);
+        if (verify) {
+            verify(file, directory, peers, seeders);
+        }
+        System.exit(remaining == 0 ? 0 : 1);
+    }
+
+    private static String take(Map<String, String> settings, String key, String defaultValue) {
+        String value = settings.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static void report(Map<String, String> settings, List<Peer> peers, int seeders, long[] completed,
+            int incomplete, long elapsed, long fileSize) {
+        long[] times = Arrays.stream(completed, seeders, completed.length).filter(t -> t >= 0).sorted().toArray();
+        long total = incomplete == 0 && times.length > 0 ? times[times.length - 1] : elapsed;
+        long downloaded = times.length * fileSize;
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf("Swarm of %s peers (%s seeders), %s, transport %s%n", peers.size(), seeders,
+                megabytes(fileSize), settings.getOrDefault("Transport", "blocking"));
+        if (incomplete > 0) {
+            System.out.printf("%s peers did not finish within the timeout%n", incomplete);
+        }
+        System.out.printf("Time to full completion: %.3f s%n", seconds(total));
+        if (times.length > 0) {
+            System.out.printf("Per-peer completion (s): min %.3f  p50 %.3f  p90 %.3f  p99 %.3f  max %.3f  mean %.3f%n",
+                    seconds(times[0]), seconds(percentile(times, 0.5)), seconds(percentile(times, 0.9)),
+                    seconds(percentile(times, 0.99)), seconds(times[times.length - 1]),
+                    seconds((long) Arrays.stream(times).average().orElse(0)));
+        }
+        System.out.printf("Aggregate throughput: %.1f MB/s%n", downloaded / 1e6 / seconds(total));
+        System.out.printf("Peak heap: %s%n", megabytes(peakHeap));
+    }
+
+    private static void verify(Path original, Path directory, List<Peer> peers, int seeders) throws IOException {
+        int mismatched = 0;
+        for (Peer peer : peers.subList(seeders, peers.size())) {
+            Path copy = directory.resolve("peer_" + peer.peerId).resolve(original.getFileName());
+            if (Files.mismatch(original, copy) != -1) {
+                System.out.printf("Peer %s has a corrupt copy%n", peer.peerId);
+                mismatched++;
+            }
+        }
+        System.out.printf("Verified %s copies, %s mismatched%n", peers.size() - seeders, mismatched);
+    }
+
+    private static void generate(Path file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] chunk = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1e6);
+    }
+}
@@ -0,0 +1,87 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** Links over TCP sockets, either blocking or registered with the peer's event loops. */
+public class TcpTransport implements Transport {
+    private final boolean nonBlocking;
+
+    public TcpTransport(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    public Listener listen(String hostname, int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        return new Listener() {
+            public Link accept() throws IOException {
+                return link(server.accept());
+            }
+
+            public void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    public Link connect(String hostname, int port) throws IOException {
+        return link(SocketChannel.open(new InetSocketAddress(hostname, port)));
+    }
+
+    public boolean selectable() {
+        return nonBlocking;
+    }
+
+    // A PIECE goes out as its header followed by a transferTo of the block. With Nagle's algorithm
+    // the block waits for the header to be acknowledged, which delayed ACKs stretch to ~40 ms.
+    private Link link(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.configureBlocking(!nonBlocking);
+        return new TcpLink(channel);
+    }
+
+    public static class TcpLink implements Link {
+        private final SocketChannel channel;
+
+        public TcpLink(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return channel.write(srcs);
+        }
+
+        public boolean isBlocking() {
+            return channel.isBlocking();
+        }
+
+        public SocketChannel socket() {
+            return channel;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
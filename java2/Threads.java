@@ -0,0 +1,44 @@
+package bittorrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the executors for peers, connections and choking tasks on either platform or virtual
+ * threads, as chosen by ThreadMode in Common.cfg. Virtual threads are looked up reflectively so the
+ * code still builds and runs on JVMs without them, where it falls back to platform threads.
+ */
+public class Threads {
+    private static final ThreadFactory VIRTUAL_FACTORY = lookUpVirtualThreadFactory();
+
+    public static boolean useVirtualThreads(Config config) {
+        if (!config.getString("ThreadMode", "platform").equals("virtual")) {
+            return false;
+        }
+        if (VIRTUAL_FACTORY == null) {
+            System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+            return false;
+        }
+        return true;
+    }
+
+    public static ExecutorService newExecutor(boolean virtual) {
+        return virtual ? Executors.newCachedThreadPool(VIRTUAL_FACTORY) : Executors.newCachedThreadPool();
+    }
+
+    public static ThreadFactory factory(boolean virtual) {
+        return virtual ? VIRTUAL_FACTORY : Executors.defaultThreadFactory();
+    }
+
+    private static ThreadFactory lookUpVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package bittorrent;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Feeds the messages a peer received, as recorded by {@link MessageTrace}, into a fresh peer as
+ * fast as it can take them, and reports what handling each type of message cost. Every recorded
+ * connection becomes a {@link Connection} over a link that replays its received frames and discards
+ * whatever is sent, driven from this thread alone, so runs differ only in the code under test.
+ * Choke rounds do not run and nothing is dialed; the peer only reacts to the trace.
+ *
+ * <p>The replayed peer follows the recording rather than its own choices. It requests nothing
+ * itself: when the trace reaches a REQUEST the recorded peer sent, that block is claimed on the same
+ * connection, so the PIECE that answered it is accepted exactly as it was. Received blocks are
+ * written and completed pieces hashed on this thread after each message, outside the timed
+ * handling, so a piece is complete before the trace reaches the HAVE the recorded peer sent for it
+ * and the REQUESTs neighbors sent after that HAVE. At the end, every piece the recorded peer
+ * announced must be complete and its bytes in the output file must match {@code FileName}.
+ *
+ * <p>Usage: {@code java bittorrent.TraceReplay trace_peer_1002.bin [Key=Value ...]}, where
+ * {@code Config} names the Common.cfg the trace was recorded with, {@code Iterations} says how
+ * many times to replay it, each time into a new peer, and any other key overrides Common.cfg.
+ * The file, piece and block sizes always come from the trace, and rate limits are off.
+ */
+public class TraceReplay {
+
+    public static void main(String[] args) throws IOException {
+        String tracePath = args[0];
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("NumberOfPreferredNeighbors", "3");
+        settings.put("UnchokingInterval", "5");
+        settings.put("OptimisticUnchokingInterval", "10");
+        Map<String, String> overrides = new LinkedHashMap<>();
+        for (String arg : List.of(args).subList(1, args.length)) {
+            String[] pair = arg.split("=", 2);
+            overrides.put(pair[0], pair[1]);
+        }
+        int iterations = Integer.parseInt(take(overrides, "Iterations", "3"));
+        String configPath = take(overrides, "Config", "Common.cfg");
+        if (Files.exists(Path.of(configPath))) {
+            Properties recorded = new Properties();
+            try (FileInputStream in = new FileInputStream(configPath)) {
+                recorded.load(in);
+            }
+            recorded.forEach((key, value) -> settings.put((String) key, (String) value));
+        }
+
+        int peerId;
+        int hasFile;
+        try (MessageTrace.Reader trace = new MessageTrace.Reader(tracePath)) {
+            peerId = trace.peerId;
+            hasFile = trace.hasFile;
+            settings.put("FileName", trace.filename);
+            settings.put("FileSize", Long.toString(trace.fileSize));
+            settings.put("PieceSize", Integer.toString(trace.pieceSize));
+            settings.put("BlockSize", Integer.toString(trace.blockSize));
+        }
+        settings.put("LogLevel", "off");
+        settings.put("Trace", "false");
+        settings.put("ResumeInterval", "0");
+        settings.put("MetricsPort", "0");
+        settings.put("MaxUploadRate", "0");
+        settings.put("MaxDownloadRate", "0");
+        settings.put("MaxConnectionUploadRate", "0");
+        settings.put("MaxConnectionDownloadRate", "0");
+        settings.putAll(overrides);
+        settings.put("MaxOutstandingRequests", "0");
+        settings.put("VerifyInline", "true");
+
+        Path directory = Files.createTempDirectory("trace-replay");
+        Result result = null;
+        for (int i = 1; i <= iterations; i++) {
+            Path iterationDirectory = Files.createDirectories(directory.resolve("iteration_" + i));
+            settings.put("PeerDirectory", iterationDirectory.toString());
+            Path cfg = iterationDirectory.resolve("Common.cfg");
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(cfg))) {
+                settings.forEach((key, value) -> out.println(key + "=" + value));
+            }
+            Peer peer = new Peer(peerId, "localhost", 0, hasFile, new Config(cfg.toString()), List.of());
+            result = replay(tracePath, peer);
+            check(peer, result, iterationDirectory.resolve("peer_" + peerId).resolve(Path.of(peer.filename).getFileName()));
+            System.out.printf("Iteration %s: %s messages in %.3f ms, %.0f ns per message%n", i,
+                    result.messages, result.elapsed / 1e6, (double) result.handling / result.messages);
+        }
+        report(peerId, result);
+        System.exit(result.diverged() ? 1 : 0);
+    }
+
+    private static String take(Map<String, String> settings, String key, String defaultValue) {
+        String value = settings.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    private static Result replay(String tracePath, Peer peer) throws IOException {
+        Result result = new Result();
+        Map<Integer, Connection> connections = new HashMap<>();
+        Map<Integer, ReplayLink> links = new HashMap<>();
+        long start = System.nanoTime();
+        try (MessageTrace.Reader trace = new MessageTrace.Reader(tracePath)) {
+            while (trace.next()) {
+                Connection conn = connections.get(trace.connection);
+                if (conn == null) {
+                    ReplayLink link = new ReplayLink();
+                    conn = new Connection(link, peer);
+                    peer.connections.add(conn);
+                    connections.put(trace.connection, conn);
+                    links.put(trace.connection, link);
+                }
+                result.recordedTime = trace.time;
+                MessageType type = trace.type();
+                if (trace.direction == MessageTrace.SENT) {
+                    follow(peer, conn, type, trace.frame, result);
+                    continue;
+                }
+                ReplayLink link = links.get(trace.connection);
+                link.feed(trace.frame, trace.length);
+                long before = System.nanoTime();
+                int remaining;
+                do {
+                    remaining = link.pending();
+                    conn.onReadable();
+                    conn.onWritable();
+                } while (link.pending() > 0 && link.pending() < remaining);
+                long cost = System.nanoTime() - before;
+                result.costs[type.ordinal()].record(cost);
+                result.handling += cost;
+                result.messages++;
+
+                before = System.nanoTime();
+                peer.diskWriter.writeQueued();
+                result.disk += System.nanoTime() - before;
+            }
+        }
+        for (Connection conn : connections.values()) {
+            conn.onWritable();
+        }
+        result.elapsed = System.nanoTime() - start;
+        result.connections = connections.size();
+        for (ReplayLink link : links.values()) {
+            result.bytesSent += link.written;
+        }
+        return result;
+    }
+
+    // Takes over the blocks the recorded peer requested, and checks that every piece it announced
+    // has been completed here too by the time it did.
+    private static void follow(Peer peer, Connection conn, MessageType type, byte[] frame, Result result) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        switch (type) {
+            case REQUEST -> conn.requested(PieceAssembler.block(buffer.getInt(5), buffer.getInt(9) / peer.blockSize));
+            case HAVE -> {
+                int index = buffer.getInt(5);
+                if (!result.announced.get(index)) {
+                    result.announced.set(index);
+                    if (!peer.bitarray.get(index)) {
+                        result.late++;
+                    }
+                }
+            }
+            default -> { }
+        }
+    }
+
+    // Compares the pieces the recorded peer announced, as written to the replayed output file, with
+    // the original file.
+    private static void check(Peer peer, Result result, Path output) throws IOException {
+        for (int i = result.announced.nextSetBit(0); i >= 0; i = result.announced.nextSetBit(i + 1)) {
+            if (!peer.bitarray.get(i)) {
+                result.missing++;
+            }
+        }
+        Path original = Path.of(peer.filename);
+        if (peer.hasFile == 1 || !Files.exists(original)) {
+            return;
+        }
+        result.checked = true;
+        try (FileChannel expected = FileChannel.open(original); FileChannel actual = FileChannel.open(output)) {
+            ByteBuffer a = ByteBuffer.allocate(peer.pieceSize);
+            ByteBuffer b = ByteBuffer.allocate(peer.pieceSize);
+            for (int i = result.announced.nextSetBit(0); i >= 0; i = result.announced.nextSetBit(i + 1)) {
+                long position = (long) i * peer.pieceSize;
+                a.clear().limit(peer.pieceLength(i));
+                b.clear().limit(peer.pieceLength(i));
+                while (a.hasRemaining() && expected.read(a, position + a.position()) >= 0) {
+                }
+                while (b.hasRemaining() && actual.read(b, position + b.position()) >= 0) {
+                }
+                if (!a.flip().equals(b.flip())) {
+                    result.mismatched++;
+                }
+            }
+        }
+    }
+
+    private static void report(int peerId, Result result) {
+        System.out.printf("Peer %s: %s messages on %s connections, recorded over %.3f s, replayed in %.3f ms%n",
+                peerId, result.messages, result.connections, result.recordedTime / 1e9, result.elapsed / 1e6);
+        System.out.printf("Sent %.1f MB in reply; disk writes and hashing took %.3f ms more%n",
+                result.bytesSent / 1e6, result.disk / 1e6);
+        System.out.printf("Recorded peer announced %s pieces: %s completed late, %s missing, %s%n",
+                result.announced.cardinality(), result.late, result.missing,
+                result.checked ? result.mismatched + " differ from the original file" : "output not compared");
+        System.out.printf("%-15s %10s %10s %10s %10s %10s%n", "ns per message", "count", "mean", "p50", "p99", "max");
+        for (MessageType type : MessageType.values()) {
+            Histogram costs = result.costs[type.ordinal()];
+            if (costs.count() > 0) {
+                System.out.printf("%-15s %10s %10.0f %10s %10s %10s%n", type, costs.count(), costs.mean(),
+                        costs.percentile(0.5), costs.percentile(0.99), costs.max());
+            }
+        }
+    }
+
+    private static class Result {
+        final Histogram[] costs = new Histogram[MessageType.values().length];
+        long messages = 0;
+        long handling = 0;
+        long elapsed;
+        long recordedTime;
+        long bytesSent = 0;
+        long disk = 0;
+        int connections;
+        // Pieces the recorded peer sent HAVE for, and how the replayed peer compares.
+        final BitSet announced = new BitSet();
+        int late = 0;
+        int missing = 0;
+        int mismatched = 0;
+        boolean checked = false;
+
+        boolean diverged() {
+            return late > 0 || missing > 0 || mismatched > 0;
+        }
+
+        Result() {
+            for (int i = 0; i < costs.length; i++) {
+                costs[i] = new Histogram();
+            }
+        }
+    }
+
+    /** Hands out the frames fed to it and accepts every write, as a socket that is never full. */
+    private static class ReplayLink implements Link {
+        private ByteBuffer pending = ByteBuffer.allocate(0);
+        private boolean open = true;
+        long written = 0;
+
+        void feed(byte[] frame, int length) {
+            pending = ByteBuffer.wrap(frame, 0, length);
+        }
+
+        int pending() {
+            return pending.remaining();
+        }
+
+        public int read(ByteBuffer dst) {
+            if (!open) {
+                return -1;
+            }
+            int n = Math.min(dst.remaining(), pending.remaining());
+            dst.put(pending.slice(pending.position(), n));
+            pending.position(pending.position() + n);
+            return n;
+        }
+
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += write(srcs[i]);
+            }
+            return n;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public boolean isBlocking() {
+            return false;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() {
+            open = false;
+        }
+    }
+}
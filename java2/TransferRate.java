@@ -0,0 +1,34 @@
+package bittorrent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes moved over one connection in one direction, with an exponentially weighted moving average
+ * of the rate. Any thread may add bytes; only the choker calls {@link #update}.
+ */
+public class TransferRate {
+    private final LongAdder bytes = new LongAdder();
+    private long lastTotal = 0;
+    private volatile double rate = 0;
+
+    public void add(long n) {
+        bytes.add(n);
+    }
+
+    public long total() {
+        return bytes.sum();
+    }
+
+    /** Folds the bytes since the last update into the average and returns the new rate in bytes/s. */
+    public double update(double seconds, double alpha) {
+        long total = bytes.sum();
+        double current = (total - lastTotal) / seconds;
+        lastTotal = total;
+        rate = alpha * current + (1 - alpha) * rate;
+        return rate;
+    }
+
+    public double rate() {
+        return rate;
+    }
+}
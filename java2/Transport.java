@@ -0,0 +1,32 @@
+package bittorrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * How peers reach each other: over TCP, or through in-memory links for simulating large swarms
+ * in one process. Chosen with the Transport setting in Common.cfg.
+ */
+public interface Transport {
+
+    Listener listen(String hostname, int port) throws IOException;
+
+    /** Opens a link to a listening peer; throws {@link java.net.ConnectException} if there is none. */
+    Link connect(String hostname, int port) throws IOException;
+
+    /** Whether links can be registered with an event loop instead of getting their own threads. */
+    boolean selectable();
+
+    interface Listener extends Closeable {
+        Link accept() throws IOException;
+    }
+
+    static Transport forName(String name, Config config) {
+        return switch (name) {
+            case "blocking" -> new TcpTransport(false);
+            case "nio" -> new TcpTransport(true);
+            case "memory" -> InMemoryTransport.shared(config);
+            default -> throw new IllegalArgumentException("Unknown transport " + name);
+        };
+    }
+}
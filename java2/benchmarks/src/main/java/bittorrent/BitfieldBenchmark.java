@@ -0,0 +1,91 @@
+package bittorrent;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The bitfield operations behind BITFIELD and HAVE handling and interest tracking, for a peer
+ * that has half the pieces and a neighbor that has a different half.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int numPieces;
+
+    private AtomicBitfield ours;
+    private AtomicBitfield theirs;
+    private AtomicBitfield scratch;
+    private BitSet received;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        ours = new AtomicBitfield(numPieces);
+        received = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextBoolean()) {
+                ours.set(i);
+            }
+            if (random.nextBoolean()) {
+                received.set(i);
+            }
+        }
+        theirs = AtomicBitfield.valueOf(received, numPieces);
+        scratch = new AtomicBitfield(numPieces);
+    }
+
+    /** Visits every piece the neighbor has, as the picker does when its BITFIELD arrives. */
+    @Benchmark
+    public int scan() {
+        int count = 0;
+        for (int i = theirs.nextSetBit(0); i >= 0; i = theirs.nextSetBit(i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    /** A received BITFIELD payload turned into a neighbor's bitfield. */
+    @Benchmark
+    public AtomicBitfield fromBitSet() {
+        return AtomicBitfield.valueOf(received, numPieces);
+    }
+
+    /** Our bitfield encoded for a BITFIELD message. */
+    @Benchmark
+    public byte[] encode() {
+        return Message.bitfield(ours.toBitSet());
+    }
+
+    /** A HAVE: marks a piece and takes it back so that the bitfield stays empty. */
+    @Benchmark
+    public boolean setAndClear() {
+        int index = next;
+        next = index + 1 == numPieces ? 0 : index + 1;
+        return scratch.set(index) & scratch.clear(index);
+    }
+
+    @Benchmark
+    public boolean get() {
+        int index = next;
+        next = index + 1 == numPieces ? 0 : index + 1;
+        return ours.get(index);
+    }
+}
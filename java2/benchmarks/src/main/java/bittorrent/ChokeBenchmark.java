@@ -0,0 +1,82 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One choke round of {@code Peer.unchoke()}: fold the traffic since the last round into every
+ * connection's rates and pick the preferred neighbors. Three quarters of the connections are
+ * interested. The connections belong to a seeding peer built over a small temporary file and are
+ * never connected, so only the selection is measured, not the CHOKE and UNCHOKE sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChokeBenchmark {
+    private static final int FILE_SIZE = 1 << 20;
+
+    @Param({"8", "64", "512"})
+    public int connections;
+
+    @Param({"false", "true"})
+    public boolean seeding;
+
+    private final List<Connection> snapshot = new ArrayList<>();
+    private final SplittableRandom random = new SplittableRandom(42);
+    private Choker choker;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path dir = Files.createTempDirectory("choke-benchmark");
+        Path file = dir.resolve("data.bin");
+        Files.write(file, new byte[FILE_SIZE]);
+        Path cfg = dir.resolve("Common.cfg");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(cfg))) {
+            out.println("NumberOfPreferredNeighbors=4");
+            out.println("UnchokingInterval=5");
+            out.println("OptimisticUnchokingInterval=10");
+            out.println("FileName=" + file);
+            out.println("FileSize=" + FILE_SIZE);
+            out.println("PieceSize=65536");
+            out.println("LogLevel=off");
+        }
+        Peer peer = new Peer(1001, "localhost", 0, 1, new Config(cfg.toString()), List.of());
+        for (int i = 0; i < connections; i++) {
+            Connection conn = new Connection(new TcpTransport.TcpLink(SocketChannel.open()), peer);
+            conn.otherPeerId = 2000 + i;
+            conn.interested = random.nextInt(4) != 0;
+            snapshot.add(conn);
+        }
+        choker = new Choker(3);
+    }
+
+    @Benchmark
+    public List<Connection> round() {
+        for (Connection conn : snapshot) {
+            conn.downloadRate.add(random.nextInt(1 << 20));
+            conn.uploadRate.add(random.nextInt(1 << 20));
+        }
+        return choker.select(snapshot, 5, seeding);
+    }
+}
@@ -0,0 +1,91 @@
+package bittorrent;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of a single message of each type. PIECE is encoded as its header only,
+ * because the block bytes are sent from the store without being copied into the frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int NUM_PIECES = 8192;
+    private static final int BLOCK_SIZE = 16384;
+
+    @Param({"HANDSHAKE", "CHOKE", "UNCHOKE", "INTERESTED", "NOT_INTERESTED", "HAVE", "BITFIELD", "REQUEST",
+            "PIECE", "CANCEL"})
+    public MessageType type;
+
+    private BitSet bitfield;
+    private ByteBuffer frame;
+    private final Message message = new Message();
+
+    @Setup
+    public void setUp() {
+        bitfield = new BitSet(NUM_PIECES);
+        bitfield.set(0, NUM_PIECES, true);
+        byte[] encoded = encode();
+        if (type == MessageType.PIECE) {
+            frame = ByteBuffer.allocate(encoded.length + BLOCK_SIZE).put(encoded);
+        } else {
+            frame = ByteBuffer.wrap(encoded);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return switch (type) {
+            case HANDSHAKE -> Message.handshake(1001);
+            case CHOKE -> Message.choke();
+            case UNCHOKE -> Message.unchoke();
+            case INTERESTED -> Message.interested();
+            case NOT_INTERESTED -> Message.notinterested();
+            case HAVE -> Message.have(4711);
+            case BITFIELD -> Message.bitfield(bitfield);
+            case REQUEST -> Message.request(4711, 3 * BLOCK_SIZE, BLOCK_SIZE);
+            case PIECE -> Message.pieceHeader(4711, 3 * BLOCK_SIZE, BLOCK_SIZE);
+            case CANCEL -> Message.cancel(4711, 3 * BLOCK_SIZE, BLOCK_SIZE);
+        };
+    }
+
+    /** Wraps the frame and reads the fields its handler in {@link Connection} reads. */
+    @Benchmark
+    public void decode(Blackhole bh) {
+        message.wrap(frame, 0, type == MessageType.HANDSHAKE);
+        switch (message.type) {
+            case HANDSHAKE -> bh.consume(message.peerId());
+            case HAVE -> bh.consume(message.index());
+            case BITFIELD -> bh.consume(message.toBitSet());
+            case REQUEST, CANCEL -> {
+                bh.consume(message.index());
+                bh.consume(message.begin());
+                bh.consume(message.blockLength());
+            }
+            case PIECE -> {
+                bh.consume(message.index());
+                bh.consume(message.begin());
+                bh.consume(message.blockOffset());
+                bh.consume(message.blockLength());
+            }
+            default -> bh.consume(message.type);
+        }
+    }
+}
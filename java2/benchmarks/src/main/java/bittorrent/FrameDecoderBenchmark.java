@@ -0,0 +1,91 @@
+package bittorrent;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits a download-side stream into frames: for every block a PIECE, interleaved with the HAVE
+ * and REQUEST traffic of a busy connection. The channel hands out the stream in chunks of
+ * {@code readSize} bytes, as a socket would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+    private static final int PIECE_SIZE = 262144;
+
+    @Param({"16384"})
+    public int blockSize;
+
+    @Param({"1500", "65536"})
+    public int readSize;
+
+    private FrameDecoder decoder;
+    private LoopingChannel channel;
+    private final Message message = new Message();
+
+    @Setup
+    public void setUp() throws Exception {
+        ByteBuffer stream = ByteBuffer.allocate(64 * (blockSize + 64));
+        for (int i = 0; i < 64; i++) {
+            stream.put(Message.have(i)).put(Message.request(i, 0, blockSize));
+            stream.put(Message.pieceHeader(i, 0, blockSize)).position(stream.position() + blockSize);
+        }
+        stream.flip();
+        channel = new LoopingChannel(stream, readSize);
+        decoder = new FrameDecoder(32 + PIECE_SIZE);
+        decoder.readFrom(new LoopingChannel(ByteBuffer.wrap(Message.handshake(1001)), 32));
+        decoder.next(message);
+    }
+
+    /** Returns the next frame's type, reading from the channel whenever the buffer runs dry. */
+    @Benchmark
+    public MessageType nextFrame() throws Exception {
+        while (!decoder.next(message)) {
+            decoder.readFrom(channel);
+        }
+        return message.type;
+    }
+
+    private static class LoopingChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+        private final int readSize;
+
+        LoopingChannel(ByteBuffer source, int readSize) {
+            this.source = source;
+            this.readSize = readSize;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (!source.hasRemaining()) {
+                source.rewind();
+            }
+            int n = Math.min(Math.min(readSize, dst.remaining()), source.remaining());
+            dst.put(dst.position(), source, source.position(), n).position(dst.position() + n);
+            source.position(source.position() + n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
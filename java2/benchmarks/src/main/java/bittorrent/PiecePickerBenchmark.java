@@ -0,0 +1,86 @@
+package bittorrent;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rarest-first selection for one neighbor in a swarm of {@value #NEIGHBORS} neighbors, with the
+ * peer a quarter done. The distribution decides how many neighbors have each piece:
+ * <ul>
+ * <li>{@code uniform}: each neighbor has each piece with probability one half,
+ * <li>{@code skewed}: most pieces are common and a few are rare, as after a seed's first rounds,
+ * <li>{@code flat}: every neighbor has every piece, so every candidate ties.
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark {
+    private static final int NEIGHBORS = 32;
+
+    @Param({"1024", "65536"})
+    public int numPieces;
+
+    @Param({"uniform", "skewed", "flat"})
+    public String distribution;
+
+    private PiecePicker picker;
+    private AtomicBitfield available;
+    private AtomicBitfield complete;
+    private AtomicBitfield started;
+
+    @Setup
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        picker = new PiecePicker(numPieces);
+        available = null;
+        for (int n = 0; n < NEIGHBORS; n++) {
+            AtomicBitfield neighbor = new AtomicBitfield(numPieces);
+            for (int i = 0; i < numPieces; i++) {
+                if (has(random, n, i)) {
+                    neighbor.set(i);
+                }
+            }
+            picker.addBitfield(neighbor);
+            if (available == null) {
+                available = neighbor;
+            }
+        }
+        complete = new AtomicBitfield(numPieces);
+        started = new AtomicBitfield(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextInt(4) == 0) {
+                complete.set(i);
+            } else if (random.nextInt(64) == 0) {
+                started.set(i);
+            }
+        }
+    }
+
+    private boolean has(SplittableRandom random, int neighbor, int index) {
+        return switch (distribution) {
+            case "uniform" -> random.nextBoolean();
+            case "skewed" -> neighbor == 0 || random.nextInt(index % 16 + 1) != 0;
+            default -> true;
+        };
+    }
+
+    @Benchmark
+    public int pick() {
+        return picker.pick(available, complete, started);
+    }
+}
@@ -0,0 +1,73 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class AtomicBitfieldTest {
+
+    @Test
+    void setAndClearReportWhetherTheyChangedTheBit() {
+        AtomicBitfield bits = new AtomicBitfield(130);
+        assertTrue(bits.set(129));
+        assertFalse(bits.set(129));
+        assertTrue(bits.get(129));
+        assertEquals(1, bits.cardinality());
+        assertTrue(bits.clear(129));
+        assertFalse(bits.clear(129));
+        assertTrue(bits.isEmpty());
+    }
+
+    @Test
+    void completeOnlyWhenEveryBitIsSet() {
+        AtomicBitfield bits = new AtomicBitfield(70);
+        for (int i = 0; i < 69; i++) {
+            bits.set(i);
+        }
+        assertFalse(bits.isComplete());
+        bits.set(69);
+        assertTrue(bits.isComplete());
+        bits.setAll();
+        assertEquals(70, bits.cardinality());
+        assertEquals(-1, bits.nextSetBit(70));
+    }
+
+    @Test
+    void convertsToAndFromBitSet() {
+        BitSet bits = new BitSet();
+        bits.set(0);
+        bits.set(63);
+        bits.set(64);
+        AtomicBitfield field = AtomicBitfield.valueOf(bits, 100);
+        assertEquals(3, field.cardinality());
+        assertEquals(bits, field.toBitSet());
+    }
+
+    @Test
+    void concurrentSetsOfTheSameBitAreCountedOnce() throws InterruptedException {
+        AtomicBitfield bits = new AtomicBitfield(1024);
+        AtomicInteger changed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            pool.execute(() -> {
+                for (int i = 0; i < 1024; i++) {
+                    if (bits.set(i)) {
+                        changed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1024, changed.get());
+        assertEquals(1024, bits.cardinality());
+        assertTrue(bits.isComplete());
+    }
+}
@@ -0,0 +1,73 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** A connection that fails unexpectedly still gives back everything it held in the peer. */
+class ConnectionFailureTest {
+    @TempDir
+    Path directory;
+
+    /** Fails with a bug rather than an I/O error once the handshake has been read. */
+    private static class FailingLink extends ScriptedLink {
+        private final boolean blocking;
+
+        FailingLink(boolean blocking) {
+            super(64, 0);
+            this.blocking = blocking;
+            feed(Message.handshake(1002));
+        }
+
+        @Override
+        public boolean isBlocking() {
+            return blocking;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!in.hasRemaining()) {
+                throw new IllegalStateException("bug");
+            }
+            return super.read(dst);
+        }
+    }
+
+    @Test
+    void blockingReaderCleansUpAfterRuntimeException() throws IOException {
+        Peer peer = new TestPeers(directory, 1 << 14, 1 << 12, 1 << 10).peer(1001, true);
+        FailingLink link = new FailingLink(true);
+        Connection conn = new Connection(link, peer);
+        peer.connections.add(conn);
+        assertEquals(1, peer.incompleteNeighbors.get());
+
+        conn.run();
+
+        assertFalse(link.isOpen());
+        assertFalse(peer.connections.contains(conn));
+        assertEquals(0, peer.incompleteNeighbors.get());
+    }
+
+    // The event loop closes a connection whose handler threw.
+    @Test
+    void eventLoopConnectionCleansUpAfterRuntimeException() throws IOException {
+        Peer peer = new TestPeers(directory, 1 << 14, 1 << 12, 1 << 10).peer(1001, true);
+        FailingLink link = new FailingLink(false);
+        Connection conn = new Connection(link, peer);
+        peer.connections.add(conn);
+
+        conn.onReadable();
+        assertThrows(IllegalStateException.class, conn::onReadable);
+        conn.close();
+
+        assertFalse(link.isOpen());
+        assertFalse(peer.connections.contains(conn));
+        assertEquals(0, peer.incompleteNeighbors.get());
+    }
+}
@@ -0,0 +1,95 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** A neighbor that names a piece or block that cannot exist is disconnected. */
+class ConnectionValidationTest {
+    // Four pieces of 4096 bytes and a last one of 1000, in blocks of 1024.
+    private static final int PIECE_SIZE = 4096;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int FILE_SIZE = 4 * PIECE_SIZE + 1000;
+
+    @TempDir
+    Path directory;
+    private Peer peer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peer = new TestPeers(directory, FILE_SIZE, PIECE_SIZE, BLOCK_SIZE).peer(1001, true);
+    }
+
+    private ScriptedLink receive(byte[] frame) {
+        ScriptedLink link = new ScriptedLink(1 << 12, 1 << 16);
+        Connection conn = new Connection(link, peer);
+        link.feed(Message.handshake(1002));
+        link.feed(frame);
+        conn.onReadable();
+        return link;
+    }
+
+    @Test
+    void validRequestsAreAnswered() {
+        ScriptedLink link = receive(Message.request(4, 0, 1000));
+        assertTrue(link.isOpen());
+        link = receive(Message.request(1, 3 * BLOCK_SIZE, BLOCK_SIZE));
+        assertTrue(link.isOpen());
+    }
+
+    @Test
+    void requestOutsideTheFileCloses() {
+        assertFalse(receive(Message.request(5, 0, BLOCK_SIZE)).isOpen());
+        assertFalse(receive(Message.request(-1, 0, BLOCK_SIZE)).isOpen());
+        assertFalse(receive(Message.request(4, BLOCK_SIZE, BLOCK_SIZE)).isOpen());
+    }
+
+    @Test
+    void requestOffTheBlockGridCloses() {
+        assertFalse(receive(Message.request(0, 100, BLOCK_SIZE)).isOpen());
+        assertFalse(receive(Message.request(0, 0, BLOCK_SIZE / 2)).isOpen());
+        assertFalse(receive(Message.request(0, 0, 2 * BLOCK_SIZE)).isOpen());
+        assertFalse(receive(Message.request(4, 0, BLOCK_SIZE)).isOpen());
+    }
+
+    @Test
+    void cancelIsCheckedLikeRequest() {
+        assertTrue(receive(Message.cancel(0, 0, BLOCK_SIZE)).isOpen());
+        assertFalse(receive(Message.cancel(7, 0, BLOCK_SIZE)).isOpen());
+    }
+
+    @Test
+    void haveOutsideTheFileCloses() {
+        assertTrue(receive(Message.have(4)).isOpen());
+        assertFalse(receive(Message.have(5)).isOpen());
+        assertFalse(receive(Message.have(Integer.MIN_VALUE)).isOpen());
+    }
+
+    @Test
+    void truncatedFramesClose() {
+        assertFalse(receive(new byte[] {0, 0, 0, 3, (byte) MessageType.HAVE.code, 0, 0}).isOpen());
+        byte[] request = Message.request(0, 0, BLOCK_SIZE);
+        ByteBuffer.wrap(request).putInt(0, 9);
+        assertFalse(receive(Arrays.copyOf(request, 13)).isOpen());
+    }
+
+    @Test
+    void secondHandshakeCloses() {
+        ScriptedLink link = receive(new byte[] {0, 0, 0, 5, 10, 0, 0, 0x10, (byte) 0x92});
+        assertFalse(link.isOpen());
+    }
+
+    @Test
+    void pieceOffTheBlockGridCloses() {
+        byte[] header = Message.pieceHeader(0, 512, BLOCK_SIZE);
+        byte[] frame = Arrays.copyOf(header, header.length + BLOCK_SIZE);
+        assertFalse(receive(frame).isOpen());
+    }
+}
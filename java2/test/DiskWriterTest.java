@@ -0,0 +1,45 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DiskWriterTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void failedWriteReleasesTheBlock() throws IOException, InterruptedException {
+        // A single piece of a single block, so that the assembler has nothing else to hand out.
+        TestPeers peers = new TestPeers(directory, BLOCK_SIZE, BLOCK_SIZE, BLOCK_SIZE);
+        peers.peer(1001, true);
+        Peer peer = peers.peer(1002, false);
+        AtomicBitfield all = new AtomicBitfield(1);
+        all.setAll();
+        long block = peer.assembler.claimBlock(all);
+        assertEquals(-1, peer.assembler.claimBlock(all));
+
+        peer.pieces.close();
+        Thread diskWriter = new Thread(peer.diskWriter);
+        diskWriter.setDaemon(true);
+        diskWriter.start();
+        peer.diskWriter.submit(new BlockWrite(null, 0, 0, 0, ByteBuffer.wrap(peers.data)));
+
+        long claimed = -1;
+        for (int i = 0; i < 500 && claimed < 0; i++) {
+            Thread.sleep(10);
+            claimed = peer.assembler.claimBlock(all);
+        }
+        assertEquals(block, claimed);
+        assertFalse(peer.assembler.isReceived(block));
+        assertTrue(peer.missingPieces());
+    }
+}
@@ -0,0 +1,163 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+
+    /** Hands out a byte stream in chunks of at most {@code chunk} bytes per read. */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int chunk;
+
+        ChunkedChannel(byte[] data, int chunk) {
+            this.data = ByteBuffer.wrap(data);
+            this.chunk = chunk;
+        }
+
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), data.remaining()));
+            dst.put(data.slice(data.position(), n));
+            data.position(data.position() + n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static byte[] stream(byte[]... frames) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(frame);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> decode(FrameDecoder decoder, ReadableByteChannel channel) throws IOException {
+        List<String> decoded = new ArrayList<>();
+        Message msg = new Message();
+        while (true) {
+            while (decoder.next(msg)) {
+                decoded.add(switch (msg.type) {
+                    case HANDSHAKE -> "HANDSHAKE " + msg.peerId();
+                    case HAVE -> "HAVE " + msg.index();
+                    case REQUEST -> "REQUEST " + msg.index() + " " + msg.begin() + " " + msg.blockLength();
+                    case PIECE -> "PIECE " + msg.index() + " " + msg.begin() + " " + msg.blockLength()
+                            + " " + msg.buffer().get(msg.blockOffset() + msg.blockLength() - 1);
+                    default -> msg.type.toString();
+                });
+            }
+            int n = decoder.readFrom(channel);
+            if (n < 0) {
+                return decoded;
+            }
+            assertTrue(n > 0, "receive buffer full without a complete frame");
+        }
+    }
+
+    private static byte[] piece(int index, int begin, int length) {
+        byte[] header = Message.pieceHeader(index, begin, length);
+        byte[] frame = new byte[header.length + length];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        frame[frame.length - 1] = 42;
+        return frame;
+    }
+
+    @Test
+    void decodesTheSameFramesWhateverTheReadSize() throws IOException {
+        byte[] data = stream(Message.handshake(1002), Message.unchoke(), Message.have(7),
+                Message.request(3, 16384, 16384), piece(3, 16384, 100), Message.have(8));
+        List<String> expected = List.of("HANDSHAKE 1002", "UNCHOKE", "HAVE 7", "REQUEST 3 16384 16384",
+                "PIECE 3 16384 100 42", "HAVE 8");
+        for (int chunk : new int[] {1, 2, 3, 5, 31, 33, data.length}) {
+            FrameDecoder decoder = new FrameDecoder(32 + 200);
+            assertEquals(expected, decode(decoder, new ChunkedChannel(data, chunk)), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void incompleteFrameStaysBuffered() throws IOException {
+        byte[] data = stream(Message.handshake(5), Message.have(9));
+        FrameDecoder decoder = new FrameDecoder(64);
+        Message msg = new Message();
+        ChunkedChannel channel = new ChunkedChannel(data, data.length - 1);
+        decoder.readFrom(channel);
+        assertTrue(decoder.next(msg));
+        assertFalse(decoder.next(msg));
+        decoder.readFrom(channel);
+        assertTrue(decoder.next(msg));
+        assertEquals(MessageType.HAVE, msg.type);
+        assertEquals(9, msg.index());
+    }
+
+    @Test
+    void frameFillingTheWholeBufferIsDecoded() throws IOException {
+        int maxMessageLength = 9 + 64;
+        byte[] data = stream(Message.handshake(1), piece(0, 0, 64));
+        FrameDecoder decoder = new FrameDecoder(maxMessageLength);
+        assertEquals(List.of("HANDSHAKE 1", "PIECE 0 0 64 42"), decode(decoder, new ChunkedChannel(data, 7)));
+    }
+
+    @Test
+    void rejectsOversizedAndUnknownFrames() throws IOException {
+        FrameDecoder oversized = new FrameDecoder(40);
+        oversized.readFrom(new ChunkedChannel(stream(Message.handshake(1), piece(0, 0, 64)), 1000));
+        Message msg = new Message();
+        assertTrue(oversized.next(msg));
+        assertThrows(ProtocolException.class, () -> oversized.next(msg));
+
+        FrameDecoder unknown = new FrameDecoder(40);
+        unknown.readFrom(new ChunkedChannel(stream(Message.handshake(1), new byte[] {0, 0, 0, 1, 99}), 1000));
+        assertTrue(unknown.next(msg));
+        assertThrows(ProtocolException.class, () -> unknown.next(msg));
+    }
+
+    @Test
+    void rejectsFirstFrameWithoutHandshakeHeader() throws IOException {
+        byte[] handshake = Message.handshake(1);
+        handshake[3] = 'x';
+        FrameDecoder decoder = new FrameDecoder(40);
+        decoder.readFrom(new ChunkedChannel(handshake, 1000));
+        assertThrows(ProtocolException.class, () -> decoder.next(new Message()));
+    }
+
+    @Test
+    void rejectsHandshakeTypeAfterTheHandshake() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(40);
+        decoder.readFrom(new ChunkedChannel(
+                stream(Message.handshake(1), new byte[] {0, 0, 0, 5, 10, 0, 0, 0x10, (byte) 0x92}), 1000));
+        Message msg = new Message();
+        assertTrue(decoder.next(msg));
+        assertThrows(ProtocolException.class, () -> decoder.next(msg));
+    }
+
+    @Test
+    void handshakeCarriesThePeerId() throws IOException {
+        byte[] handshake = Message.handshake(123456);
+        assertEquals(FrameDecoder.HANDSHAKE_LENGTH, handshake.length);
+        assertArrayEquals(Message.P2PFILESHARINGPROJ.getBytes(), Arrays.copyOf(handshake, 18));
+        FrameDecoder decoder = new FrameDecoder(40);
+        assertEquals(List.of("HANDSHAKE 123456"), decode(decoder, new ChunkedChannel(handshake, 4)));
+    }
+}
@@ -0,0 +1,61 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals(0.0, histogram.mean());
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long v = 0; v < 8; v++) {
+            histogram.record(v);
+        }
+        histogram.record(1_000_000);
+        for (long v = 0; v < 8; v++) {
+            assertEquals(v, histogram.percentile((v + 1) / 9.0));
+        }
+    }
+
+    @Test
+    void bucketUpperBoundIsWithinAnEighthOfTheValue() {
+        for (long value = 8; value > 0 && value < Long.MAX_VALUE / 4; value = value * 3 + 1) {
+            for (long v : new long[] {value, value + 1, Long.highestOneBit(value), Long.highestOneBit(value) * 2 - 1}) {
+                Histogram histogram = new Histogram();
+                histogram.record(v);
+                // The larger value keeps the bound from being clipped to the maximum.
+                histogram.record(Long.MAX_VALUE / 2);
+                long bound = histogram.percentile(0.5);
+                assertTrue(bound >= v, v + " reported as " + bound);
+                assertTrue(bound - v <= v / 8, v + " reported as " + bound);
+            }
+        }
+    }
+
+    @Test
+    void percentileNeverExceedsTheMaximum() {
+        Histogram histogram = new Histogram();
+        histogram.record(1000);
+        assertEquals(1000, histogram.percentile(1.0));
+        assertEquals(1000, histogram.max());
+    }
+
+    @Test
+    void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.sum());
+        assertEquals(0, histogram.percentile(0.5));
+    }
+}
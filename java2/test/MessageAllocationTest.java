@@ -0,0 +1,163 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.BitSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Received HAVE, REQUEST and PIECE frames go through the decoder and {@link Connection} as views
+ * over the receive buffer. This checks how much the connection thread allocates per message once
+ * the JIT has warmed up, so that copies of frames or payloads do not creep back in.
+ */
+class MessageAllocationTest {
+    private static final int PIECE_SIZE = 4096;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int NUM_PIECES = 512;
+    private static final int WARMUP_ROUNDS = 30;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    Path directory;
+    private TestPeers peers;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peers = new TestPeers(directory, PIECE_SIZE * NUM_PIECES, PIECE_SIZE, BLOCK_SIZE);
+    }
+
+    private static long allocated() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static void drain(Connection conn, ScriptedLink link) {
+        while (link.in.hasRemaining()) {
+            conn.onReadable();
+            conn.onWritable();
+        }
+        conn.onWritable();
+    }
+
+    /** A neighbor that has announced itself, so that only the frames fed later are measured. */
+    private static Connection connect(Peer peer, ScriptedLink link, int neighbor) {
+        Connection conn = new Connection(link, peer);
+        peer.connections.add(conn);
+        link.feed(Message.handshake(neighbor));
+        drain(conn, link);
+        return conn;
+    }
+
+    @Test
+    void haveAllocatesNothing() throws IOException {
+        Peer peer = peers.peer(1001, true);
+        peer = peers.peer(1002, false);
+        double perMessage = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            ScriptedLink link = new ScriptedLink(9 * NUM_PIECES + 64, 0);
+            Connection conn = connect(peer, link, 2000 + round);
+            for (int i = 0; i < NUM_PIECES; i++) {
+                link.feed(Message.have(i));
+            }
+            long before = allocated();
+            drain(conn, link);
+            perMessage = (double) (allocated() - before) / NUM_PIECES;
+        }
+        assertTrue(perMessage < 8, "HAVE allocated " + perMessage + " bytes per message");
+    }
+
+    @Test
+    void requestAllocatesOnlyTheQueuedReply() throws IOException {
+        Peer peer = peers.peer(1001, true);
+        int blocks = NUM_PIECES * (PIECE_SIZE / BLOCK_SIZE);
+        double perMessage = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            ScriptedLink link = new ScriptedLink(17 * blocks + 64, 0);
+            Connection conn = connect(peer, link, 2000 + round);
+            for (int i = 0; i < blocks; i++) {
+                int index = i / (PIECE_SIZE / BLOCK_SIZE);
+                link.feed(Message.request(index, i % (PIECE_SIZE / BLOCK_SIZE) * BLOCK_SIZE, BLOCK_SIZE));
+            }
+            long before = allocated();
+            drain(conn, link);
+            perMessage = (double) (allocated() - before) / blocks;
+        }
+        // Only the PIECE reply, which outlives the call in the outbound queue: its header and a
+        // buffer around it, a view of the block, the Outbound with its buffer array and a queue node.
+        assertTrue(perMessage < 288, "REQUEST allocated " + perMessage + " bytes per message");
+    }
+
+    @Test
+    void pieceAllocatesOnlyTheBlockHandedToTheDiskWriter() throws IOException, InterruptedException {
+        peers.peer(1001, true);
+        double perMessage = 0;
+        for (int round = 0; round < WARMUP_ROUNDS / 3; round++) {
+            Peer peer = peers.peer(1100 + round, false, "DiskQueueSize=1000000", "MaxOutstandingRequests=16");
+            Thread diskWriter = new Thread(peer.diskWriter);
+            diskWriter.setDaemon(true);
+            diskWriter.start();
+            ScriptedLink link = new ScriptedLink(1 << 20, 1 << 22);
+            Connection conn = connect(peer, link, 1001);
+            BitSet all = new BitSet();
+            all.set(0, NUM_PIECES);
+            link.feed(Message.bitfield(all));
+            link.feed(Message.unchoke());
+            drain(conn, link);
+
+            long before = allocated();
+            int pieces = answerRequests(conn, link);
+            perMessage = (double) (allocated() - before) / pieces - BLOCK_SIZE;
+            // Interrupting the disk writer would close the store under the hashing threads.
+            for (int i = 0; i < 1000 && peer.missingPieces(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(!peer.missingPieces(), "download did not complete");
+        }
+        // Besides the block copy, only what is handed to other threads or kept for later: the
+        // BlockWrite and its disk queue node, the next REQUEST frame queued the same way as a PIECE
+        // reply, and the partial piece, shared by the blocks of a piece. Tracking the request
+        // itself allocates nothing.
+        assertTrue(perMessage < 512, "PIECE allocated " + perMessage + " bytes per message beyond the block");
+    }
+
+    // Answers every REQUEST the connection sends with the block from the file until every block
+    // has been sent once. Returns the number of PIECE frames sent.
+    private int answerRequests(Connection conn, ScriptedLink link) throws InterruptedException {
+        int total = NUM_PIECES * (PIECE_SIZE / BLOCK_SIZE);
+        int sent = 0;
+        int parsed = FrameDecoder.HANDSHAKE_LENGTH;
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (sent < total && System.nanoTime() < deadline) {
+            ByteBuffer out = link.out;
+            int end = out.position();
+            boolean answered = false;
+            while (end - parsed >= 4 && end - parsed >= 4 + out.getInt(parsed)) {
+                int length = out.getInt(parsed);
+                if (out.get(parsed + 4) == MessageType.REQUEST.code) {
+                    int index = out.getInt(parsed + 5);
+                    int begin = out.getInt(parsed + 9);
+                    int blockLength = out.getInt(parsed + 13);
+                    link.in.compact();
+                    link.in.putInt(9 + blockLength).put((byte) MessageType.PIECE.code).putInt(index).putInt(begin)
+                            .put(peers.data, index * PIECE_SIZE + begin, blockLength);
+                    link.in.flip();
+                    sent++;
+                    answered = true;
+                }
+                parsed += 4 + length;
+            }
+            drain(conn, link);
+            if (!answered) {
+                Thread.sleep(1);
+            }
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,85 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MessageTraceTest {
+    private static final int THREADS = 4;
+    private static final int MESSAGES = 20_000;
+
+    @TempDir
+    Path directory;
+
+    // The smallest ring the trace allows, so that records wrap around it many times and
+    // connections have to wait for the writer.
+    @Test
+    void recordsEveryMessageOfEveryConnectionInOrder() throws IOException, InterruptedException {
+        Peer peer = new TestPeers(directory, 1 << 14, 1 << 10, 1 << 10)
+                .peer(1001, true, "Trace=true", "TraceBufferSize=1");
+        MessageTrace trace = peer.trace;
+        Thread writer = new Thread(trace);
+        writer.start();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int connection = trace.opened();
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < MESSAGES; i++) {
+                    trace.sent(connection, i % 3 == 0 ? Message.have(i) : Message.request(i, connection, i % 100));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        trace.close();
+        writer.join(5000);
+
+        int[] next = new int[THREADS];
+        long time = 0;
+        try (MessageTrace.Reader reader = new MessageTrace.Reader(directory.resolve("trace_peer_1001.bin").toString())) {
+            assertEquals(1001, reader.peerId);
+            while (reader.next()) {
+                assertTrue(reader.time >= time);
+                time = reader.time;
+                assertEquals(MessageTrace.SENT, reader.direction);
+                int c = reader.connection;
+                int i = next[c]++;
+                byte[] expected = i % 3 == 0 ? Message.have(i) : Message.request(i, c, i % 100);
+                assertArrayEquals(expected, Arrays.copyOf(reader.frame, reader.length));
+            }
+        }
+        for (int c = 0; c < THREADS; c++) {
+            assertEquals(MESSAGES, next[c]);
+        }
+    }
+
+    @Test
+    void frameOutsideItsBufferIsSkippedWithoutStallingTheWriter() throws IOException, InterruptedException {
+        Peer peer = new TestPeers(directory, 1 << 14, 1 << 10, 1 << 10).peer(1001, true, "Trace=true");
+        MessageTrace trace = peer.trace;
+        Thread writer = new Thread(trace);
+        writer.start();
+        Message bogus = new Message();
+        bogus.wrap(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 4, 0, 0, 0}), 0, false);
+        trace.received(0, bogus);
+        trace.sent(0, Message.have(7));
+        trace.close();
+        writer.join(5000);
+
+        try (MessageTrace.Reader reader = new MessageTrace.Reader(directory.resolve("trace_peer_1001.bin").toString())) {
+            assertTrue(reader.next());
+            assertArrayEquals(Message.have(7), Arrays.copyOf(reader.frame, reader.length));
+            assertFalse(reader.next());
+        }
+    }
+}
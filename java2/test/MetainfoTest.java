@@ -0,0 +1,58 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetainfoTest {
+    private static final int FILE_SIZE = 10_000;
+
+    @TempDir
+    Path directory;
+    private TestPeers peers;
+    private String metaPath;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        peers = new TestPeers(directory, FILE_SIZE, 4096, 1024);
+        metaPath = directory.resolve("data.bin.meta").toString();
+    }
+
+    @Test
+    void matchesOnlyItsOwnLayout() throws IOException {
+        Metainfo metainfo = peers.peer(1001, true).metainfo;
+        assertTrue(metainfo.matches(FILE_SIZE, 4096));
+        assertFalse(metainfo.matches(FILE_SIZE + 1, 4096));
+        assertFalse(metainfo.matches(FILE_SIZE, 2048));
+    }
+
+    @Test
+    void verifiesPieces() throws IOException {
+        Metainfo metainfo = peers.peer(1001, true).metainfo;
+        assertTrue(metainfo.verify(2, ByteBuffer.wrap(peers.data, 8192, FILE_SIZE - 8192).slice()));
+        assertFalse(metainfo.verify(1, ByteBuffer.wrap(peers.data, 0, 4096).slice()));
+    }
+
+    @Test
+    void seederRegeneratesStaleMetainfo() throws IOException {
+        peers.peer(1001, true);
+        Peer seeder = peers.peer(1001, true, "PieceSize=2048");
+        assertTrue(seeder.metainfo.matches(FILE_SIZE, 2048));
+        assertEquals(2048, Metainfo.read(metaPath).pieceSize);
+    }
+
+    @Test
+    void leecherIgnoresStaleMetainfo() throws IOException {
+        peers.peer(1001, true);
+        assertNull(peers.peer(1002, false, "PieceSize=2048").metainfo);
+        assertEquals(4096, peers.peer(1003, false).metainfo.pieceSize);
+    }
+}
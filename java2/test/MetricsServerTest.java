@@ -0,0 +1,42 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetricsServerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void rendersConnectionsOnceTheyHaveANeighbor() throws IOException {
+        Peer peer = new TestPeers(directory, 1 << 14, 1 << 12, 1 << 10).peer(1001, true);
+        Connection handshaken = new Connection(new ScriptedLink(64, 0), peer);
+        handshaken.otherPeerId = 1002;
+        handshaken.requestLatency.record(2_000_000);
+        handshaken.chokingTime.set(false);
+        handshaken.chokingTime.set(true);
+        handshaken.chokingTime.set(false);
+        peer.connections.add(handshaken);
+        peer.connections.add(new Connection(new ScriptedLink(64, 0), peer));
+        MetricsServer.register(peer.metrics, 0);
+
+        String text = MetricsServer.render();
+        assertFalse(text.contains("neighbor=\"-1\""));
+        assertTrue(text.contains("# TYPE bittorrent_connection_request_latency_seconds summary\n"));
+        assertTrue(text.contains(
+                "bittorrent_connection_request_latency_seconds_count{peer=\"1001\",neighbor=\"1002\"} 1.0\n"));
+        assertTrue(text.contains(
+                "bittorrent_connection_choking_period_seconds_count{peer=\"1001\",neighbor=\"1002\"} 2.0\n"));
+        assertTrue(text.contains(
+                "bittorrent_connection_bytes_received_total{peer=\"1001\",neighbor=\"1002\"} 0.0\n"));
+        // One series for the handshaken connection; the other has no neighbor to label it with.
+        assertEquals(1, text.lines().filter(line -> line.startsWith("bittorrent_connection_bytes_received_total{")).count());
+        assertEquals(1, text.lines().filter(line -> line.startsWith("bittorrent_connection_request_latency_seconds_count{")).count());
+    }
+}
@@ -0,0 +1,76 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PieceAssemblerTest {
+    @TempDir
+    Path directory;
+    private Peer peer;
+    private AtomicBitfield all;
+
+    // Two pieces of two blocks each.
+    @BeforeEach
+    void setUp() throws IOException {
+        TestPeers peers = new TestPeers(directory, 4096, 2048, 1024);
+        peers.peer(1001, true);
+        peer = peers.peer(1002, false);
+        all = new AtomicBitfield(2);
+        all.setAll();
+    }
+
+    @Test
+    void claimedBlocksAreNotHandedOutAgain() {
+        peer.assembler.claim(PieceAssembler.block(1, 0));
+        assertEquals(PieceAssembler.block(1, 1), peer.assembler.claimBlock(all));
+        assertFalse(peer.assembler.isReceived(PieceAssembler.block(1, 0)));
+    }
+
+    @Test
+    void claimedBlocksCompleteTheirPiece() {
+        peer.assembler.claim(PieceAssembler.block(0, 1));
+        peer.assembler.claim(PieceAssembler.block(0, 0));
+        assertFalse(peer.assembler.received(PieceAssembler.block(0, 1)));
+        assertTrue(peer.assembler.received(PieceAssembler.block(0, 0)));
+    }
+
+    @Test
+    void claimIgnoresCompletePieces() {
+        peer.assembler.claim(PieceAssembler.block(0, 0));
+        peer.assembler.verified(0);
+        peer.assembler.claim(PieceAssembler.block(0, 1));
+        assertTrue(peer.assembler.isReceived(PieceAssembler.block(0, 1)));
+    }
+
+    @Test
+    void duplicateRequestKeepsTheBlockClaimedUntilBothAreReleased() {
+        claimAll();
+        long block = PieceAssembler.block(0, 0);
+        assertEquals(block, peer.assembler.claimDuplicate(all, new RequestTable(0)));
+        peer.assembler.release(block);
+        assertEquals(-1, peer.assembler.claimBlock(all));
+        peer.assembler.release(block);
+        assertEquals(block, peer.assembler.claimBlock(all));
+    }
+
+    @Test
+    void endgameStartsOnce() {
+        peer.assembler.claimBlock(all);
+        assertFalse(peer.assembler.startEndgame());
+        claimAll();
+        assertTrue(peer.assembler.startEndgame());
+        assertFalse(peer.assembler.startEndgame());
+    }
+
+    private void claimAll() {
+        while (peer.assembler.claimBlock(all) >= 0) {
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PieceStoreTest {
+    private static final int FILE_SIZE = 10_000;
+
+    @TempDir
+    Path directory;
+
+    // A larger file left under the same name must not keep its tail after the download.
+    private long openedSize(int peerId, String store, boolean preallocate) throws IOException {
+        TestPeers peers = new TestPeers(directory, FILE_SIZE, 4096, 1024);
+        Path output = directory.resolve("peer_" + peerId).resolve("data.bin");
+        Files.createDirectories(output.getParent());
+        Files.write(output, new byte[3 * FILE_SIZE]);
+        peers.peer(1001, true);
+        peers.peer(peerId, false, "PieceStore=" + store, "Preallocate=" + preallocate).pieces.close();
+        return Files.size(output);
+    }
+
+    @Test
+    void heapStoreTruncatesLongerFile() throws IOException {
+        assertEquals(FILE_SIZE, openedSize(1002, "heap", true));
+        assertEquals(FILE_SIZE, openedSize(1003, "heap", false));
+    }
+
+    @Test
+    void mappedStoreTruncatesLongerFile() throws IOException {
+        assertEquals(FILE_SIZE, openedSize(1004, "mmap", true));
+        assertEquals(FILE_SIZE, openedSize(1005, "mmap", false));
+    }
+}
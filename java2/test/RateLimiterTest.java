@@ -0,0 +1,45 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    @Test
+    void unlimitedNeverWaits() {
+        RateLimiter limiter = new RateLimiter(0);
+        assertFalse(limiter.isLimited());
+        assertEquals(0, limiter.reserve(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    void burstOfOneHundredMillisecondsIsFree() {
+        RateLimiter limiter = new RateLimiter(1_000_000);
+        assertEquals(0, limiter.reserve(50_000));
+        assertEquals(0, limiter.reserve(50_000));
+    }
+
+    @Test
+    void nextReservationWaitsForWhatWasBorrowed() {
+        RateLimiter limiter = new RateLimiter(1_000_000);
+        assertEquals(0, limiter.reserve(100_000));
+        // A reservation is never refused; it puts the bucket a second into debt.
+        assertEquals(0, limiter.reserve(1_000_000));
+        long wait = limiter.reserve(1);
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(1000), "wait " + wait);
+        assertTrue(wait >= TimeUnit.MILLISECONDS.toNanos(950), "wait " + wait);
+    }
+
+    @Test
+    void bothLimitersAreCharged() {
+        RateLimiter global = new RateLimiter(1_000_000);
+        RateLimiter local = new RateLimiter(0);
+        long wait = RateLimiter.reserve(global, local, 2_000_000);
+        assertEquals(0, wait);
+        assertTrue(RateLimiter.reserve(global, local, 1) >= TimeUnit.MILLISECONDS.toNanos(1800));
+    }
+}
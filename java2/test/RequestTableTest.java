@@ -0,0 +1,39 @@
+package bittorrent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RequestTableTest {
+    @Test
+    void removesBlocksWithTheirRequestTime() {
+        RequestTable table = new RequestTable(4);
+        table.add(PieceAssembler.block(1, 0), -5);
+        table.add(PieceAssembler.block(1, 1), 7);
+        table.add(PieceAssembler.block(2, 0), 9);
+        assertEquals(-5, table.remove(PieceAssembler.block(1, 0)));
+        assertEquals(RequestTable.NOT_REQUESTED, table.remove(PieceAssembler.block(1, 0)));
+        assertFalse(table.contains(PieceAssembler.block(1, 0)));
+        assertTrue(table.contains(PieceAssembler.block(2, 0)));
+        assertEquals(7, table.remove(PieceAssembler.block(1, 1)));
+        assertEquals(1, table.size());
+    }
+
+    // Replayed traces take over more requests than MaxOutstandingRequests allows.
+    @Test
+    void growsPastItsCapacity() {
+        RequestTable table = new RequestTable(0);
+        for (int b = 0; b < 10; b++) {
+            table.add(PieceAssembler.block(0, b), b);
+        }
+        assertEquals(10, table.size());
+        assertEquals(3, table.remove(PieceAssembler.block(0, 3)));
+        int left = 0;
+        while (table.removeAny() >= 0) {
+            left++;
+        }
+        assertEquals(9, left);
+    }
+}
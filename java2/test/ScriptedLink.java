@@ -0,0 +1,72 @@
+package bittorrent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A non-blocking link with no selector behind it, for driving a {@link Connection} from a test:
+ * {@link Connection#onReadable} reads whatever has been put into {@link #in}, and
+ * {@link Connection#onWritable} writes into {@link #out}, or nowhere if it is null. Neither side
+ * allocates, so allocation tests can use it.
+ */
+class ScriptedLink implements Link {
+    /** Bytes the connection will receive, in read mode. */
+    final ByteBuffer in;
+    /** Bytes the connection sent, in write mode. */
+    final ByteBuffer out;
+    private boolean open = true;
+
+    ScriptedLink(int inCapacity, int outCapacity) {
+        in = ByteBuffer.allocate(inCapacity).flip();
+        out = outCapacity > 0 ? ByteBuffer.allocate(outCapacity) : null;
+    }
+
+    /** Appends bytes for the connection to receive. */
+    void feed(byte[] bytes) {
+        in.compact().put(bytes).flip();
+    }
+
+    public int read(ByteBuffer dst) {
+        if (!open) {
+            return -1;
+        }
+        int n = Math.min(dst.remaining(), in.remaining());
+        dst.put(dst.position(), in, in.position(), n);
+        dst.position(dst.position() + n);
+        in.position(in.position() + n);
+        return n;
+    }
+
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        if (out != null) {
+            out.put(src);
+        } else {
+            src.position(src.limit());
+        }
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        long n = 0;
+        for (int i = offset; i < offset + length; i++) {
+            n += write(srcs[i]);
+        }
+        return n;
+    }
+
+    public long write(ByteBuffer[] srcs) {
+        return write(srcs, 0, srcs.length);
+    }
+
+    public boolean isBlocking() {
+        return false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,46 @@
+package bittorrent;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+/** Builds peers over a small random file in a temporary directory, without starting them. */
+class TestPeers {
+    final Path directory;
+    final byte[] data;
+    final int pieceSize;
+    final int blockSize;
+
+    TestPeers(Path directory, int fileSize, int pieceSize, int blockSize) throws IOException {
+        this.directory = directory;
+        this.pieceSize = pieceSize;
+        this.blockSize = blockSize;
+        data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        Files.write(directory.resolve("data.bin"), data);
+    }
+
+    /** A peer with the given settings on top of the defaults; the seeder must be built first. */
+    Peer peer(int peerId, boolean hasFile, String... settings) throws IOException {
+        Path cfg = directory.resolve("Common_" + peerId + ".cfg");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(cfg))) {
+            out.println("NumberOfPreferredNeighbors=2");
+            out.println("UnchokingInterval=5");
+            out.println("OptimisticUnchokingInterval=10");
+            out.println("FileName=" + directory.resolve("data.bin"));
+            out.println("FileSize=" + data.length);
+            out.println("PieceSize=" + pieceSize);
+            out.println("BlockSize=" + blockSize);
+            out.println("PeerDirectory=" + directory);
+            out.println("LogLevel=off");
+            out.println("ResumeInterval=0");
+            for (String setting : settings) {
+                out.println(setting);
+            }
+        }
+        return new Peer(peerId, "localhost", 0, hasFile ? 1 : 0, new Config(cfg.toString()), List.of());
+    }
+}